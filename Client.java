@@ -1,41 +1,91 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**Class containing {@link Client#main(String[])} which creates and runs a client program
- * which is used to connect to the server program using the IP address and port number.*/
+ * which is used to connect to the server program using the IP address and port number.
+ * <br> The connection to the server is handled by a {@link ClientEngine}, this class only handles the command line.*/
 public class Client
 {
-	/**Socket used to communicate with the server */
-	private Socket socket;
+	/**Runs the connection to the server */
+	private ClientEngine engine = new ClientEngine();
 
-	/**Used to recieve input from the server */
-	private BufferedReader textIn;
+	/**The connection to the server */
+	private ClientEngine.Connection connection;
 
-	/**Used to write to the server */
-	private PrintWriter textOut;
+	/**The address and port of the server given on the command line, or null if the user should be asked for them */
+	private String[] serverArguments;
 
-	/**Creates an instance of client and runs {@link Client#runClient()} 
-	 * @param args unused command line arguments */
+	/**Used to create the mailbox key, see {@link Client#loadMailboxKey()} */
+	private static final SecureRandom random = new SecureRandom();
+
+	/**Trace 1 in this many messages with {@link ClientEngine.Connection#enableTracing(int)}, or 0 to not trace messages */
+	private int traceSampling;
+
+	/**Creates an instance of client and runs {@link Client#runClient()}
+	 * @param args Optionally the address and port of the server, so the client connects without asking for them,
+	 * then optionally --trace=(number) to trace 1 in every (number) messages*/
     public static void main(String[] args)
     {
         Client myClient = new Client();
+		ArrayList<String> serverArguments = new ArrayList<String>();
+		for(String arg : args)
+		{
+			if(arg.startsWith("--trace=")) myClient.traceSampling = Integer.parseInt(arg.substring(8));
+			else serverArguments.add(arg);
+		}
+		if(serverArguments.size() >= 2) myClient.serverArguments = serverArguments.toArray(new String[serverArguments.size()]);
 		myClient.runClient();
     }
-	
+
 	/**Calls the methods required to run the client program. {@link Client#connectToServer()} connects the
-	 * client to the server, {@link Client#handleOutputs()} and {@link Client#handleInputs()} create threads that run concurrently.*/
+	 * client to the server, then {@link Client#handleOutputs()} sends the user's input to the server.
+	 * Messages from the server are printed by the {@link ClientEngine}'s thread as they arrive.*/
 	private void runClient()
 	{
+		engine.start();
 		connectToServer();
+		String mailboxKey = loadMailboxKey();
+		if(mailboxKey != null) connection.setMailboxKey(mailboxKey);
+		if(traceSampling > 0)
+		{
+			connection.enableTracing(traceSampling);
+			System.out.println("Tracing 1 in every "+traceSampling+" messages, type /latency to see how long messages took to arrive.");
+		}
 		handleOutputs();
-		handleInputs();
 	}
-	
-	/**Gets input for the IP and port number from the user 
-	 * and attempts to connect to the server by creating a socket with this. */
+
+	/**Gets input for the IP and port number from the user, or uses the ones given on the command line,
+	 * and attempts to connect to the server using {@link ClientEngine#connect(String,int,MessageListener)}.
+	 * <br> If the address given on the command line cannot be connected to the program closes instead of asking. */
 	private void connectToServer()
 	{
+		if(serverArguments != null)
+		{
+			try
+			{
+				connection = engine.connect(serverArguments[0], Integer.parseInt(serverArguments[1]), new ConsoleListener());
+			}
+			catch(Exception e)
+			{
+				System.out.println("Sorry, I was unable to connect to "+serverArguments[0]+" on port "+serverArguments[1]+".");
+				engine.close();
+				System.exit(1);
+			}
+			return;
+		}
+
 		boolean connected = false; //If a connect is successful this becomes true and the while loop ends
 		while(connected == false)
 		{
@@ -46,104 +96,827 @@ public class Client
 				System.out.println("Input the port number of the server you would like to connect to: ");
 				int portNumber = Selector.selectOptionInt(1025,65535);
 
-				//Initialising the socket then using it to initialise the IOStreams
-				socket = new Socket(serverAddress, portNumber);
-				textIn = new BufferedReader( new InputStreamReader( socket.getInputStream() ) );
-				textOut = new PrintWriter(socket.getOutputStream(), true);
-
+				connection = engine.connect(serverAddress, portNumber, new ConsoleListener());
 				connected = true;
 			}
 			catch(Exception e)
 			{
 				System.out.println("Sorry, I was unable to connect using the port and address inputted. Please try again.");
 			}
-			
+
+		}
+
+	}
+
+	/**Reads this user's mailbox key from the file .message-client-key in their home directory, creating the file with 
+	 * a new random key if it does not exist. The key lets the server give whispers sent while the user was away only to them.
+	 * @return String - The key, or null if the file could not be read or created*/
+	private String loadMailboxKey()
+	{
+		File keyFile = new File(System.getProperty("user.home"), ".message-client-key");
+		try
+		{
+			if(keyFile.exists())
+			{
+				BufferedReader reader = new BufferedReader(new FileReader(keyFile));
+				try {return reader.readLine().trim();}
+				finally {reader.close();}
+			}
+			String key = Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+			Writer writer = new FileWriter(keyFile);
+			try {writer.write(key+"\n");}
+			finally {writer.close();}
+			return key;
+		}
+		catch(Exception e)
+		{
+			System.out.println("Your mailbox key could not be read from "+keyFile+", whispers sent while you are away will not be kept for you.");
+			return null;
 		}
-		
 	}
 
-	/**Creates and runs a thread which sends the client's inputs to the server 
-	 * <br> Calls {@link Client#closeConnection()} if the client loses connection to the server*/
+	/**Sends the client's inputs to the server until the console is closed. If the program has no console 
+	 * (such as when it is started by another program) the inputs are read from standard input instead.
+	 * <br> Calls {@link Client#closeConnection()} if the console cannot be read from*/
 	private void handleOutputs()
 	{
-		Thread outputsThread = new Thread()
+		BufferedReader standardInput = (System.console() == null) ? new BufferedReader(new InputStreamReader(System.in)) : null;
+		while(true)
+		{
+			try
+			{
+				//Gets input from client
+				String messageToServer = (standardInput == null) ? System.console().readLine() : standardInput.readLine();
+
+				if(messageToServer.equals("/quit")) connection.quit(); //Sends /quit without trying to reconnect afterwards
+				else if(messageToServer.equals("/latency")) System.out.println( connection.getLatencySummary() );
+				else connection.send(messageToServer); //Sends input to sever
+			}
+			//Catching nullPointer exceptions caused by the console closing
+			catch(Exception e)
+			{
+				closeConnection();
+			}
+		}
+	}
+
+	/**Closes the connection to the server then closes the program. */
+	private void closeConnection()
+	{
+		engine.close();
+		System.out.println("Disconnected from server.");
+		System.exit(0); //Close the program
+	}
+
+	/**Prints the messages from the server for the client, and closes the program when the connection ends */
+	private class ConsoleListener implements MessageListener
+	{
+		public void onMessage(ClientEngine.Connection connection, String message)
+		{
+			System.out.println(message); //prints output for the client
+		}
+
+		public void onReconnecting(ClientEngine.Connection connection)
+		{
+			System.out.println("Lost connection to the server. Trying to reconnect...");
+		}
+
+		public void onReconnected(ClientEngine.Connection connection, boolean resumed)
+		{
+			if(resumed) System.out.println("Reconnected to the server.");
+			else System.out.println("Reconnected to the server. Please input a username:");
+		}
+
+		public void onDisconnect(ClientEngine.Connection connection)
+		{
+			closeConnection();
+		}
+	}
+
+}
+
+
+
+/**Recieves the messages and events from a {@link ClientEngine.Connection}.
+ * <br> The methods are called by the engine's thread, so they should not take long or every connection will be held up.*/
+interface MessageListener
+{
+	/**Called for each message from the server, after sequence numbers and protocol lines have been removed
+	 * @param connection The connection the message came from
+	 * @param message The message*/
+	void onMessage(ClientEngine.Connection connection, String message);
+
+	/**Called when the connection is lost and the engine starts trying to reconnect
+	 * @param connection The connection that was lost*/
+	default void onReconnecting(ClientEngine.Connection connection) {}
+
+	/**Called when the engine has reconnected to the server
+	 * @param connection The connection that has reconnected
+	 * @param resumed true if the session was resumed, false if it is a new session and a username has to be chosen again*/
+	default void onReconnected(ClientEngine.Connection connection, boolean resumed) {}
+
+	/**Called once when the connection has closed and will not reconnect
+	 * @param connection The connection that closed*/
+	void onDisconnect(ClientEngine.Connection connection);
+}
+
+
+
+/**Runs any number of connections to servers on one thread using non-blocking IO, so that one program
+ * (such as a bridge between servers or a bot) can use lots of connections without a thread for each one.
+ * <br> Call {@link ClientEngine#start()} once, then {@link ClientEngine#connect(String,int,MessageListener)} for each server.
+ * Messages are sent with {@link Connection#send(String)} from any thread, and recieved by the {@link MessageListener}.
+ * <br> Each connection asks the server for sequenced messages, acknowledges them every {@link ClientEngine#ACKNOWLEDGE_WINDOW}
+ * messages or {@link ClientEngine#ACKNOWLEDGE_DELAY} milliseconds, and resumes its session if the connection is lost.*/
+class ClientEngine
+{
+	/**Messages are acknowledged after recieving this many messages, or after {@link ClientEngine#ACKNOWLEDGE_DELAY} */
+	static final int ACKNOWLEDGE_WINDOW = 32;
+
+	/**The longest time (in milliseconds) a recieved message waits before it is acknowledged */
+	static final long ACKNOWLEDGE_DELAY = 200;
+
+	/**The number of times a connection tries to reconnect before giving up */
+	static final int RECONNECT_ATTEMPTS = 5;
+
+	/**The character set used by the server to read and write messages */
+	private static final Charset charset = Charset.defaultCharset();
+
+	/**Used to wait until any of the connections can be read from or written to. Written in full since {@link Selector} is the menu class.*/
+	private java.nio.channels.Selector selector;
+
+	/**Every connection that has not closed */
+	private ArrayList<Connection> connections = new ArrayList<Connection>();
+
+	/**Jobs for the engine's thread given by other threads, such as registering a new connection */
+	private ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**The thread running {@link ClientEngine#runLoop()} */
+	private Thread loopThread;
+
+	/**Becomes true when {@link ClientEngine#close()} is called */
+	private volatile boolean closed;
+
+	/**Opens the selector and starts the engine's thread
+	 * @throws IllegalStateException If the selector cannot be opened*/
+	public void start()
+	{
+		try
+		{
+			selector = java.nio.channels.Selector.open();
+		}
+		catch(IOException e)
+		{
+			throw new IllegalStateException("Could not start the client engine", e);
+		}
+		loopThread = new Thread("Client engine")
 		{
 			public void run()
 			{
-				while(true)
-				{
-					try
-					{
-						String messageToServer = System.console().readLine(); //Gets input from client
-						
-						textOut.println(messageToServer); //Sends input to sever
-						textOut.flush();
-						
-					}
-					//Catching nullPointer and IO exceptions caused by disconnect to server
-					catch(Exception e)
-					{
-						closeConnection();
-					}
-					
-				}
+				runLoop();
 			}
 		};
-		outputsThread.start();
+		loopThread.setDaemon(true);
+		loopThread.start();
 	}
 
-	/**Creates and runs a thread which recieves output from the server and prints it for the client
-	 * <br> Calls {@link Client#closeConnection()} if the client loses connection to the server*/
-	private void handleInputs()
+	/**Connects to a server and asks it for sequenced messages. The connection is made before this returns so that
+	 * problems such as a wrong address are thrown here.
+	 * @param address The address of the server
+	 * @param port The port number of the server
+	 * @param listener Recieves the messages from the server
+	 * @return Connection - The connection, used to send messages
+	 * @throws IOException Caused by being unable to connect to the server*/
+	public Connection connect(String address, int port, MessageListener listener) throws IOException
 	{
-		Thread inputsThread = new Thread()
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(address, port));
+		final Connection connection = new Connection(address, port, listener);
+		connection.send("/sequenced"); //Asks the server to number its messages so they can be acknowledged
+		connection.attach(channel);
+		runOnLoop(new Runnable()
 		{
 			public void run()
 			{
-				while(true)
+				connections.add(connection);
+			}
+		});
+		return connection;
+	}
+
+	/**Closes every connection and stops the engine's thread */
+	public void close()
+	{
+		closed = true;
+		if(selector != null) selector.wakeup();
+		try
+		{
+			if(loopThread != null && Thread.currentThread() != loopThread) loopThread.join(1000);
+		}
+		catch(InterruptedException e) {}
+	}
+
+	/**Gives a job to the engine's thread and wakes it up
+	 * @param task The job to run*/
+	private void runOnLoop(Runnable task)
+	{
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**Run by the engine's thread. Waits until a connection can be read from, written to or has finished connecting, or
+	 * until a connection needs to acknowledge messages or try to reconnect, then handles it. Runs until the engine is closed.*/
+	private void runLoop()
+	{
+		while(!closed)
+		{
+			Runnable task;
+			while( (task = tasks.poll()) != null )
+			{
+				task.run();
+			}
+
+			try
+			{
+				long now = System.currentTimeMillis();
+				long nextTimer = Long.MAX_VALUE;
+				for(Connection connection : connections)
 				{
-					try
-					{
-						String messageFromServer = textIn.readLine(); //Reads output from the server
+					nextTimer = Math.min(nextTimer, connection.getNextTimer());
+				}
+				if(nextTimer == Long.MAX_VALUE) selector.select();
+				else if(nextTimer <= now) selector.selectNow();
+				else selector.select(nextTimer - now);
+			}
+			catch(IOException e)
+			{
+				break; //The selector has stopped working so the engine cannot continue
+			}
 
-						//To make sure the program is closed if the socket cannot be read from
-						//(On some systems an exception wasnt always thrown if the server couldn't be connected to, this makes sure this happens)
-						if(messageFromServer == null) throw new IOException();
+			for(SelectionKey key : selector.selectedKeys())
+			{
+				Connection connection = (Connection) key.attachment();
+				try
+				{
+					if(key.isValid() && key.isConnectable()) connection.finishConnecting();
+					if(key.isValid() && key.isReadable()) connection.read();
+					if(key.isValid() && key.isWritable()) connection.write();
+				}
+				//Catching IO exceptions caused by the connection to the server being lost
+				catch(IOException e)
+				{
+					connection.connectionLost();
+				}
+			}
+			selector.selectedKeys().clear();
 
-						System.out.println(messageFromServer); //prints output for the client
-						
-					}
+			long now = System.currentTimeMillis();
+			for(Connection connection : new ArrayList<Connection>(connections))
+			{
+				connection.runTimers(now);
+			}
+		}
+
+		for(Connection connection : connections)
+		{
+			connection.closeChannel();
+		}
+		try {selector.close();}
+		catch(IOException e) {}
+	}
+
+	/**A connection to one server. Everything apart from {@link Connection#send(String)} and {@link Connection#quit()}
+	 * is only used by the engine's thread.*/
+	class Connection
+	{
+		/**The address of the server, remembered so the connection can reconnect */
+		private final String address;
+
+		/**The port number of the server, remembered so the connection can reconnect */
+		private final int port;
+
+		/**Recieves the messages from the server */
+		private final MessageListener listener;
+
+		/**The channel connected to the server, or null while reconnecting */
+		private SocketChannel channel;
+
+		/**Used to recieve bytes from the server */
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
 
-					//Catching nullPointer and IO exceptions caused by disconnect to server
-					catch(Exception e)
+		/**The bytes of the line currently being recieved */
+		private byte[] line = new byte[256];
+
+		/**The number of bytes in line */
+		private int lineLength;
+
+		/**Lines waiting to be written to the server. Accesses must be synchronized on pendingWrites since any thread can send.*/
+		private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<ByteBuffer>();
+
+		/**Token sent by the server which is used to resume the session after reconnecting. Null until the server sends it.*/
+		private String sessionToken;
+
+		/**The sequence number of the last message recieved from the server */
+		private long lastSequence;
+
+		/**The sequence number of the last message acknowledged to the server */
+		private long lastAcknowledged;
+
+		/**The time recieved messages must be acknowledged by, or 0 if every message has been acknowledged */
+		private long acknowledgeTime;
+
+		/**Becomes true when {@link Connection#quit()} is called so the connection does not try to reconnect */
+		private volatile boolean quitting;
+
+		/**The time (in milliseconds) the server asked the client to spread its reconnection over using /reconnect (milliseconds),
+		 * or -1 if the server has not asked the client to reconnect*/
+		private long reconnectWindow = -1;
+
+		/**The number of reconnection attempts made since the connection was lost */
+		private int reconnectAttempts;
+
+		/**The time of the next reconnection attempt, or 0 if the connection is not waiting to reconnect */
+		private long reconnectTime;
+
+		/**True after reconnecting until the server answers the /resume command */
+		private boolean resuming;
+
+		/**Becomes true when the connection has closed for good */
+		private boolean finished;
+
+		/**The key sent with /mailbox, or null if none has been set. See {@link Connection#setMailboxKey(String)}.*/
+		private volatile String mailboxKey;
+
+		/**Trace 1 in this many messages sent, or 0 if tracing is off. See {@link Connection#enableTracing(int)}.*/
+		private volatile int traceSampling;
+
+		/**The number of messages (not commands) sent, used to choose which messages to trace */
+		private final AtomicLong messagesSent = new AtomicLong();
+
+		/**How long traced messages took at each stage, from the sender pressing enter to this client reading them */
+		private final LatencyHistogram senderToServer = new LatencyHistogram("Sender to server"),
+				serverTime = new LatencyHistogram("Server read to sent"),
+				serverToHere = new LatencyHistogram("Server sent to recieved here"),
+				total = new LatencyHistogram("Total (sender to recieved here)");
+
+		Connection(String address, int port, MessageListener listener)
+		{
+			this.address = address;
+			this.port = port;
+			this.listener = listener;
+		}
+
+		/**Sends a line to the server. Can be called from any thread, the line is written by the engine's thread.
+		 * <br> If tracing is on, messages that are chosen to be traced are sent with the time they were sent.
+		 * @param message The line to send*/
+		public void send(String message)
+		{
+			if(traceSampling > 0 && !message.isEmpty() && message.charAt(0) != '/' && messagesSent.incrementAndGet() % traceSampling == 0)
+			{
+				message = "/trace "+LatencyHistogram.currentMicros()+" "+message;
+			}
+			ByteBuffer bytes = charset.encode(message + System.lineSeparator());
+			synchronized(pendingWrites)
+			{
+				pendingWrites.addLast(bytes);
+			}
+			runOnLoop(new Runnable()
+			{
+				public void run()
+				{
+					enableWriting();
+				}
+			});
+		}
+
+		/**Asks the server to send the times traced messages passed through it, and starts tracing messages sent by this connection.
+		 * Each message is stamped with the time it was sent, so the server and the clients recieving it can record how long 
+		 * it took. Only 1 in every (sampling) messages is traced so tracing costs almost nothing.
+		 * @param sampling Trace 1 in this many messages*/
+		public void enableTracing(int sampling)
+		{
+			send("/traced");
+			traceSampling = sampling;
+		}
+
+		/**Sends the key that proves whispers the server stored for this client's name are for it. The server gives stored
+		 * whispers for a name only to the client that first used the name with its key, so the same key should be used every time.
+		 * Must be called before the name is chosen.
+		 * @param key The key, which should be random and kept secret*/
+		public void setMailboxKey(String key)
+		{
+			mailboxKey = key;
+			send("/mailbox "+key);
+		}
+
+		/**Returns how long the traced messages this connection recieved took at each stage, one stage per line.
+		 * Stages between two computers include the difference between their clocks.*/
+		public String getLatencySummary()
+		{
+			return senderToServer.getSummary()+"\n"+serverTime.getSummary()+"\n"+serverToHere.getSummary()+"\n"+total.getSummary();
+		}
+
+		/**Sends /quit to the server and closes the connection without reconnecting once the server closes it */
+		public void quit()
+		{
+			quitting = true;
+			send("/quit");
+		}
+
+		/**Uses the channel for this connection, registering it with the engine's selector
+		 * @param newChannel The channel connected (or connecting) to the server
+		 * @throws IOException Caused by the channel being unable to be registered*/
+		private void attach(final SocketChannel newChannel) throws IOException
+		{
+			newChannel.configureBlocking(false);
+			runOnLoop(new Runnable()
+			{
+				public void run()
+				{
+					try
 					{
-						closeConnection();
+						channel = newChannel;
+						int operations = newChannel.isConnected() ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+						newChannel.register(selector, operations, Connection.this);
+						enableWriting();
+					}
+					catch(IOException e)
+					{
+						connectionLost();
 					}
 				}
+			});
+		}
+
+		/**Asks the selector to say when the channel can be written to, if there are lines waiting to be written */
+		private void enableWriting()
+		{
+			if(channel == null || !channel.isConnected()) return;
+			SelectionKey key = channel.keyFor(selector);
+			boolean waiting;
+			synchronized(pendingWrites)
+			{
+				waiting = !pendingWrites.isEmpty();
 			}
-		};
-		inputsThread.start();
-	
+			if(key != null && key.isValid() && waiting) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+
+		/**Finishes connecting a channel opened while reconnecting, then asks the server to resume the session
+		 * @throws IOException Caused by the server refusing the connection*/
+		private void finishConnecting() throws IOException
+		{
+			channel.finishConnect();
+			channel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+			synchronized(pendingWrites)
+			{
+				pendingWrites.addFirst( charset.encode("/resume "+sessionToken+" "+lastSequence+System.lineSeparator()) );
+				if(traceSampling > 0) pendingWrites.addFirst( charset.encode("/traced"+System.lineSeparator()) );
+				if(mailboxKey != null) pendingWrites.addFirst( charset.encode("/mailbox "+mailboxKey+System.lineSeparator()) );
+				pendingWrites.addFirst( charset.encode("/sequenced"+System.lineSeparator()) );
+			}
+			resuming = true;
+			enableWriting();
+		}
+
+		/**Reads what the server has sent and handles each complete line with {@link Connection#processLine(String)}
+		 * @throws IOException Caused by the connection being lost*/
+		private void read() throws IOException
+		{
+			readBuffer.clear();
+			int count = channel.read(readBuffer);
+			if(count == -1) throw new EOFException();
+
+			byte[] bytes = readBuffer.array();
+			for(int x = 0; x < count; x++)
+			{
+				if(bytes[x] == '\n')
+				{
+					int length = (lineLength > 0 && line[lineLength - 1] == '\r') ? lineLength - 1 : lineLength;
+					String text = new String(line, 0, length, charset);
+					lineLength = 0;
+					processLine(text);
+					if(channel == null) return; //The line closed the connection
+				}
+				else
+				{
+					if(lineLength == line.length) line = Arrays.copyOf(line, line.length * 2);
+					line[lineLength++] = bytes[x];
+				}
+			}
+		}
+
+		/**Writes as many of the waiting lines as the channel will take, then stops waiting to write if they have all been written
+		 * @throws IOException Caused by the connection being lost*/
+		private void write() throws IOException
+		{
+			synchronized(pendingWrites)
+			{
+				while(!pendingWrites.isEmpty())
+				{
+					ByteBuffer bytes = pendingWrites.peekFirst();
+					channel.write(bytes);
+					if(bytes.hasRemaining()) return; //The channel is full, try again when it can be written to
+					pendingWrites.removeFirst();
+				}
+			}
+			SelectionKey key = channel.keyFor(selector);
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+
+		/**Processes a line recieved from the server. Sequenced messages (~(sequence) (message)) have their sequence number removed
+		 * and are acknowledged once {@link ClientEngine#ACKNOWLEDGE_WINDOW} messages have been recieved. Messages that have already
+		 * been recieved before reconnecting are ignored, and protocol lines such as /session (token) are remembered rather than given
+		 * to the listener.
+		 * @param text The line recieved from the server*/
+		private void processLine(String text)
+		{
+			if(text.startsWith("/session "))
+			{
+				sessionToken = text.substring(9).trim();
+				if(resuming)
+				{
+					resuming = false;
+					lastAcknowledged = lastSequence; //The server acknowledges everything up to lastSequence when resuming
+					reconnectWindow = -1;
+					reconnectAttempts = 0;
+					listener.onReconnected(this, true);
+				}
+				return;
+			}
+			else if(text.equals("/resumeFailed") && resuming)
+			{
+				resuming = false;
+				if(reconnectWindow < 0)
+				{
+					finish();
+					return;
+				}
+				//The restarted server does not know about the old session, so start a new one
+				sessionToken = null;
+				lastSequence = 0;
+				lastAcknowledged = 0;
+				acknowledgeTime = 0;
+				reconnectWindow = -1;
+				reconnectAttempts = 0;
+				listener.onReconnected(this, false);
+				return;
+			}
+			else if(resuming)
+			{
+				return; //Skipping the lines the server sends before it answers the resume
+			}
+			else if(text.startsWith("/reconnect "))
+			{
+				try {reconnectWindow = Long.parseLong(text.substring(11).trim());}
+				catch(NumberFormatException e) {reconnectWindow = 0;}
+				return;
+			}
+
+			int space = text.indexOf(' ');
+			long sequence = -1;
+			if(text.startsWith("~") && space > 1)
+			{
+				try {sequence = Long.parseLong(text.substring(1, space));}
+				catch(NumberFormatException e) {} //Not a sequenced message
+			}
+			if(sequence == -1)
+			{
+				listener.onMessage(this, recordTrace(text));
+				return;
+			}
+
+			if(sequence <= lastSequence) return; //Already recieved before reconnecting
+			lastSequence = sequence;
+			if(lastSequence - lastAcknowledged >= ACKNOWLEDGE_WINDOW) acknowledge();
+			else if(acknowledgeTime == 0) acknowledgeTime = System.currentTimeMillis() + ACKNOWLEDGE_DELAY;
+			listener.onMessage(this, recordTrace(text.substring(space + 1)));
+		}
+
+		/**Records the times of a message sent as /traced (sender's send time) (server read time) (server send time) (message)
+		 * @param text The message from the server
+		 * @return String - The message without the times*/
+		private String recordTrace(String text)
+		{
+			if(!text.startsWith("/traced ")) return text;
+			long recievedTime = LatencyHistogram.currentMicros();
+			String[] parts = text.split(" ", 5);
+			if(parts.length < 5) return text;
+			try
+			{
+				long sendTime = Long.parseLong(parts[1]);
+				long readTime = Long.parseLong(parts[2]);
+				long writeTime = Long.parseLong(parts[3]);
+				senderToServer.record(readTime - sendTime);
+				serverTime.record(writeTime - readTime);
+				serverToHere.record(recievedTime - writeTime);
+				total.record(recievedTime - sendTime);
+			}
+			catch(NumberFormatException e)
+			{
+				return text;
+			}
+			return parts[4];
+		}
+
+		/**Sends /ack with the sequence number of the last message recieved, which acknowledges every message up to it */
+		private void acknowledge()
+		{
+			acknowledgeTime = 0;
+			if(lastSequence <= lastAcknowledged) return;
+			send("/ack "+lastSequence);
+			lastAcknowledged = lastSequence;
+		}
+
+		/**Returns the time the engine next needs to do something for this connection, or Long.MAX_VALUE if it does not */
+		private long getNextTimer()
+		{
+			long next = Long.MAX_VALUE;
+			if(acknowledgeTime != 0) next = acknowledgeTime;
+			if(reconnectTime != 0) next = Math.min(next, reconnectTime);
+			return next;
+		}
+
+		/**Acknowledges messages and tries to reconnect if it is time to
+		 * @param now The current time*/
+		private void runTimers(long now)
+		{
+			if(acknowledgeTime != 0 && acknowledgeTime <= now && channel != null && !resuming) acknowledge();
+			if(reconnectTime != 0 && reconnectTime <= now)
+			{
+				reconnectTime = 0;
+				reconnect();
+			}
+		}
+
+		/**Called when the connection is lost. Tries to resume the session with {@link Connection#reconnect()} unless
+		 * the user quit or the server cannot resume it, otherwise closes the connection for good.*/
+		private void connectionLost()
+		{
+			closeChannel();
+			if(finished) return;
+
+			boolean wasReconnecting = resuming || reconnectAttempts > 0;
+			resuming = false;
+			if(quitting || (sessionToken == null && reconnectWindow < 0) || reconnectAttempts >= RECONNECT_ATTEMPTS)
+			{
+				finish();
+				return;
+			}
+
+			//Waiting a random time within the window so every client does not reconnect to the restarted server at once
+			if(reconnectAttempts == 0 && reconnectWindow >= 0) reconnectTime = System.currentTimeMillis() + (long) (Math.random() * reconnectWindow);
+			else reconnectTime = System.currentTimeMillis() + (1000L << reconnectAttempts);
+			reconnectAttempts++;
+			if(!wasReconnecting) listener.onReconnecting(this);
+		}
+
+		/**Starts connecting to the server again without waiting, {@link Connection#finishConnecting()} is called once it has connected
+		 * (straight away if the connection finished at once) */
+		private void reconnect()
+		{
+			try
+			{
+				SocketChannel newChannel = SocketChannel.open();
+				newChannel.configureBlocking(false);
+				boolean connected = newChannel.connect(new InetSocketAddress(address, port));
+				channel = newChannel;
+				newChannel.register(selector, SelectionKey.OP_CONNECT, this);
+				//Connections to this machine can finish straight away, in which case the selector would never say it is connectable
+				if(connected) finishConnecting();
+			}
+			catch(IOException e)
+			{
+				connectionLost();
+			}
+		}
+
+		/**Closes the channel, dropping any line that was only partly written so the server does not recieve half a line */
+		private void closeChannel()
+		{
+			if(channel == null) return;
+			try {channel.close();}
+			catch(IOException e) {}
+			channel = null;
+			lineLength = 0;
+			synchronized(pendingWrites)
+			{
+				ByteBuffer first = pendingWrites.peekFirst();
+				if(first != null && first.position() > 0) pendingWrites.removeFirst();
+			}
+		}
+
+		/**Closes the connection for good and tells the listener */
+		private void finish()
+		{
+			closeChannel();
+			finished = true;
+			reconnectTime = 0;
+			acknowledgeTime = 0;
+			connections.remove(this);
+			listener.onDisconnect(this);
+		}
 	}
-	
-	/**Closes the {@link Client#socket} then closes the program. This method
-	 * is synchronized so that both threads running in client do not attempt 
-	 * to close the server at the same time if there is a disconnect*/
-	synchronized private void closeConnection()
+
+}
+
+
+
+//The latency histogram class is used by both the client and the server programs. Since the programs are separate, the class is included in both java files.
+/**Counts how long traced messages took at one stage of being sent, in buckets that double in size (0 microseconds, 1, 2 to 3, 
+ * 4 to 7...) so times can be recorded by lots of threads at once without locking or keeping every time. 
+ * Percentiles are given as the top of the bucket they fall in, so they are never more than twice the real time.
+ * <br> Times compared between two computers include the difference between their clocks, times below 0 are counted as 0.*/
+class LatencyHistogram
+{
+	/**Added to {@link System#nanoTime()} (in microseconds) to give the time since 1970, so times can be sent to other programs */
+	private static final long MICROS_OFFSET = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+
+	/**What is being measured, such as "Server read to dispatch" */
+	private final String name;
+
+	/**The number of times in each bucket, bucket b holds times from 2^(b-1) to 2^b - 1 microseconds */
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+	/**The longest time recorded in microseconds */
+	private final AtomicLong slowest = new AtomicLong();
+
+	/**Creates an empty histogram
+	 * @param name What is being measured*/
+	LatencyHistogram(String name)
+	{
+		this.name = name;
+	}
+
+	/**Returns the current time in microseconds since 1970, used to stamp traced messages. The time comes from 
+	 * {@link System#nanoTime()} so times taken by the same program can be compared to the microsecond.*/
+	static long currentMicros()
+	{
+		return System.nanoTime() / 1000 + MICROS_OFFSET;
+	}
+
+	/**Records a time
+	 * @param micros The time in microseconds*/
+	void record(long micros)
 	{
-		try 
-		{ 
-			socket.close(); 
-			System.out.println("Disconnected from server.");
-			System.exit(0); //Close the program
-		} 
-		catch (IOException e) 
+		if(micros < 0) micros = 0;
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(micros));
+		long current;
+		while( micros > (current = slowest.get()) && !slowest.compareAndSet(current, micros) ) {}
+	}
+
+	/**Returns the number of times recorded */
+	long getCount()
+	{
+		long count = 0;
+		for(int x = 0; x < buckets.length(); x++)
+		{
+			count += buckets.get(x);
+		}
+		return count;
+	}
+
+	/**Returns a time that the percentage of recorded times were at or below
+	 * @param percent The percentile to get, such as 50 for the median
+	 * @return long - The time in microseconds, 0 if nothing has been recorded*/
+	long getPercentile(double percent)
+	{
+		long count = getCount();
+		long target = (long) Math.ceil(count * percent / 100);
+		long seen = 0;
+		for(int x = 0; x < buckets.length(); x++)
 		{
-			System.err.println("Exception when closing the socket"); e.printStackTrace();
-			System.exit(0); //Close the program						
+			seen += buckets.get(x);
+			if(seen >= target && seen > 0) return Math.min(slowest.get(), (x == 0) ? 0 : (1L << x) - 1);
 		}
+		return slowest.get();
 	}
 
+	/**Returns the longest time recorded in microseconds */
+	long getSlowest()
+	{
+		return slowest.get();
+	}
+
+	/**Returns what is being measured */
+	String getName()
+	{
+		return name;
+	}
+
+	/**Returns one line describing the times recorded, such as "Server read to dispatch: 20 messages, median 0.1 ms, ..." */
+	String getSummary()
+	{
+		long count = getCount();
+		if(count == 0) return name+": no messages traced yet";
+		return name+": "+count+" messages, median "+formatMicros(getPercentile(50))+", 99% "+formatMicros(getPercentile(99))+
+				", slowest "+formatMicros(getSlowest());
+	}
+
+	/**Returns a time in microseconds as milliseconds (or seconds if it is long) to read */
+	static String formatMicros(long micros)
+	{
+		if(micros >= 10000000) return String.format("%.1f s", micros / 1e6);
+		return String.format("%.3f ms", micros / 1e3);
+	}
 }
 
 
@@ -0,0 +1,168 @@
+import java.io.*;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**Class containing {@link ConnectionBenchmark#main(String[])} which measures how quickly a running server accepts clients when
+ * lots of clients connect at once, like they do when everybody reconnects after a network problem.
+ * <br> Usage: java ConnectionBenchmark (address) (port) [connections] [threads]
+ * <br> Each connection waits for the username prompt, chooses a name and waits for the welcome message. The connections are
+ * kept open until every connection has joined, then the number of connections per second and the time taken to join are printed.
+ * Run the server with different --acceptors values (and --reusePort=true) to compare them.*/
+public class ConnectionBenchmark
+{
+	/**The address of the server */
+	private String serverAddress;
+
+	/**The port number of the server */
+	private int portNumber;
+
+	/**The number of clients to connect */
+	private int connections;
+
+	/**The number of threads connecting clients at the same time */
+	private int threads;
+
+	/**Used to give each connection a different name */
+	private AtomicInteger nextName = new AtomicInteger();
+
+	/**Creates an instance of the benchmark using the command line arguments and runs it using {@link ConnectionBenchmark#runBenchmark()}
+	 * @param args The address and port of the server, then optionally the number of connections and threads*/
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length < 2)
+		{
+			System.out.println("Usage: java ConnectionBenchmark (address) (port) [connections] [threads]");
+			return;
+		}
+		ConnectionBenchmark benchmark = new ConnectionBenchmark();
+		benchmark.serverAddress = args[0];
+		benchmark.portNumber = Integer.parseInt(args[1]);
+		benchmark.connections = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+		benchmark.threads = (args.length > 3) ? Integer.parseInt(args[3]) : 200;
+		benchmark.runBenchmark();
+	}
+
+	/**Connects every client using a pool of threads, then prints the results
+	 * @throws Exception Caused by the threads being interrupted*/
+	private void runBenchmark() throws Exception
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<Long>> joinTimes = new ArrayList<Future<Long>>();
+		final ArrayList<Socket> sockets = new ArrayList<Socket>();
+
+		long startTime = System.nanoTime();
+		for(int x = 0; x < connections; x++)
+		{
+			joinTimes.add(pool.submit(new Callable<Long>()
+			{
+				public Long call() throws Exception
+				{
+					long connectTime = System.nanoTime();
+					Socket socket = connect();
+					synchronized(sockets)
+					{
+						sockets.add(socket);
+					}
+					return System.nanoTime() - connectTime;
+				}
+			}));
+		}
+
+		//Collecting the time each connection took to join, in microseconds
+		long[] times = new long[connections];
+		int failed = 0;
+		int joined = 0;
+		for(Future<Long> joinTime : joinTimes)
+		{
+			try
+			{
+				times[joined] = joinTime.get() / 1000;
+				joined++;
+			}
+			catch(ExecutionException e)
+			{
+				failed++;
+			}
+		}
+		long totalTime = System.nanoTime() - startTime;
+		pool.shutdown();
+
+		times = Arrays.copyOf(times, joined);
+		Arrays.sort(times);
+		System.out.println(joined+" clients joined in "+(totalTime / 1000000)+" ms ("+failed+" failed)");
+		if(joined > 0)
+		{
+			System.out.println("Connections per second: "+(long) (joined / (totalTime / 1e9)));
+			System.out.println("Time to join (ms): median "+percentile(times, 50)+", 99th percentile "+percentile(times, 99)+", slowest "+percentile(times, 100));
+		}
+
+		for(Socket socket : sockets)
+		{
+			socket.close();
+		}
+	}
+
+	/**Connects one client and waits until it has joined the server
+	 * @return Socket - The socket of the client, left open so the client stays in the server
+	 * @throws IOException Caused by the server refusing or closing the connection*/
+	private Socket connect() throws IOException
+	{
+		Socket socket = new Socket(serverAddress, portNumber);
+		BufferedReader textIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+		PrintWriter textOut = new PrintWriter(socket.getOutputStream(), true);
+
+		waitFor(textIn, "Please input a username:");
+		textOut.println("bench"+nextName.incrementAndGet());
+		waitFor(textIn, "Welcome to the server.");
+
+		//Reading the rest of the messages in the background so the server never waits to write to this client
+		final InputStream input = socket.getInputStream();
+		Thread drainThread = new Thread()
+		{
+			public void run()
+			{
+				byte[] buffer = new byte[8192];
+				try
+				{
+					while(input.read(buffer) != -1) {}
+				}
+				catch(IOException e) {} //The socket has been closed
+			}
+		};
+		drainThread.setDaemon(true);
+		drainThread.start();
+		return socket;
+	}
+
+	/**Reads lines from the server until one starts with the text
+	 * @param textIn Used to read from the server
+	 * @param text The text to wait for
+	 * @throws IOException Caused by the server closing the connection first*/
+	private static void waitFor(BufferedReader textIn, String text) throws IOException
+	{
+		String line;
+		while( (line = textIn.readLine()) != null )
+		{
+			if(line.startsWith(text)) return;
+		}
+		throw new EOFException("The server closed the connection");
+	}
+
+	/**Returns a percentile of the sorted times in milliseconds
+	 * @param sortedTimes The times in microseconds, in order
+	 * @param percent The percentile to get, 100 is the slowest time
+	 * @return String - The time in milliseconds to one decimal place*/
+	private static String percentile(long[] sortedTimes, int percent)
+	{
+		int position = (int) Math.min(sortedTimes.length - 1, (long) sortedTimes.length * percent / 100);
+		return String.format("%.1f", sortedTimes[position] / 1000.0);
+	}
+
+}
@@ -0,0 +1,176 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**Class containing {@link FilterBenchmark#main(String[])} which measures how many messages per second the server's word filter
+ * ({@link Server.WordMatcher}) can check, so the cost of a large word list can be seen before using it on a real server.
+ * <br> Usage: java FilterBenchmark [words] [messages] [word file]
+ * <br> If no word file is given, a list of random words is made (10000 if not set). Random messages (1000000 if not set)
+ * are made with a banned word in 1 in every 100 of them, then each message is masked and checked for words as the server
+ * would do. For comparison, the time taken to check some of the messages with String.contains for every word is also printed.
+ * <br> Compile together with the server: javac Server.java FilterBenchmark.java*/
+public class FilterBenchmark
+{
+	/**Used to make the words and messages, with a fixed seed so every run checks the same messages */
+	private Random random = new Random(42);
+
+	/**The words the filter looks for */
+	private ArrayList<String> words = new ArrayList<String>();
+
+	/**The messages to check */
+	private String[] messages;
+
+	/**Creates an instance of the benchmark using the command line arguments and runs it using {@link FilterBenchmark#runBenchmark()}
+	 * @param args Optionally the number of words, the number of messages and a file of words to use instead of random words*/
+	public static void main(String[] args) throws Exception
+	{
+		FilterBenchmark benchmark = new FilterBenchmark();
+		int wordCount = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+		int messageCount = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+		if(args.length > 2) benchmark.readWords(new File(args[2]));
+		else benchmark.makeWords(wordCount);
+		benchmark.makeMessages(messageCount);
+		benchmark.runBenchmark();
+	}
+
+	/**Builds the filter, then times checking every message with it
+	 * @throws Exception Caused by the word list being unable to be read*/
+	private void runBenchmark() throws Exception
+	{
+		long startTime = System.nanoTime();
+		Server.WordMatcher matcher = new Server.WordMatcher(words);
+		System.out.println("Built the filter for "+matcher.getWordCount()+" words in "+((System.nanoTime() - startTime) / 1000000)+" ms");
+
+		//Running each check a few times first so the JIT has compiled it before it is timed
+		for(int x = 0; x < 3; x++)
+		{
+			timeMasking(matcher);
+			timeMatching(matcher);
+		}
+		long masked = timeMasking(matcher);
+		long matched = timeMatching(matcher);
+		System.out.println("Masking: "+perSecond(messages.length, masked)+" messages per second ("+masked / 1000000+" ms)");
+		System.out.println("Blocking: "+perSecond(messages.length, matched)+" messages per second ("+matched / 1000000+" ms)");
+
+		int sample = Math.min(messages.length, 1000);
+		long naive = timeContains(sample);
+		System.out.println("String.contains for every word: "+perSecond(sample, naive)+" messages per second ("+sample+" messages)");
+	}
+
+	/**Masks every message and returns the time taken in nanoseconds */
+	private long timeMasking(Server.WordMatcher matcher)
+	{
+		int changed = 0;
+		long startTime = System.nanoTime();
+		for(String message : messages)
+		{
+			if(matcher.mask(message) != message) changed++;
+		}
+		long time = System.nanoTime() - startTime;
+		if(changed == 0) System.out.println("No messages were masked"); //Also stops the loop being optimised away
+		return time;
+	}
+
+	/**Checks every message for words and returns the time taken in nanoseconds */
+	private long timeMatching(Server.WordMatcher matcher)
+	{
+		int found = 0;
+		long startTime = System.nanoTime();
+		for(String message : messages)
+		{
+			if(matcher.matches(message)) found++;
+		}
+		long time = System.nanoTime() - startTime;
+		if(found == 0) System.out.println("No messages contained a word");
+		return time;
+	}
+
+	/**Checks the first messages for words one word at a time, the way a filter without an automaton would
+	 * @param sample The number of messages to check
+	 * @return long - The time taken in nanoseconds*/
+	private long timeContains(int sample)
+	{
+		int found = 0;
+		long startTime = System.nanoTime();
+		for(int x = 0; x < sample; x++)
+		{
+			String message = messages[x].toLowerCase();
+			for(String word : words)
+			{
+				if(message.contains(word))
+				{
+					found++;
+					break;
+				}
+			}
+		}
+		long time = System.nanoTime() - startTime;
+		if(found == 0) System.out.println("No messages contained a word");
+		return time;
+	}
+
+	/**Reads the words from a file the same way the server does, one per line
+	 * @throws IOException Caused by the file being unable to be read*/
+	private void readWords(File file) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try
+		{
+			String line;
+			while( (line = reader.readLine()) != null )
+			{
+				if(!line.startsWith("//") && !line.trim().isEmpty()) words.add(line.trim().toLowerCase());
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**Makes random words of 4 to 10 letters for the filter to look for */
+	private void makeWords(int count)
+	{
+		for(int x = 0; x < count; x++)
+		{
+			words.add(randomWord(4 + random.nextInt(7)));
+		}
+	}
+
+	/**Makes messages of 5 to 20 random words, with a word from the list in 1 in every 100 messages */
+	private void makeMessages(int count)
+	{
+		messages = new String[count];
+		StringBuilder message = new StringBuilder();
+		for(int x = 0; x < count; x++)
+		{
+			message.setLength(0);
+			int length = 5 + random.nextInt(16);
+			for(int y = 0; y < length; y++)
+			{
+				if(y > 0) message.append(' ');
+				message.append(randomWord(2 + random.nextInt(8)));
+			}
+			if(x % 100 == 0) message.append(' ').append(words.get(random.nextInt(words.size())));
+			messages[x] = message.toString();
+		}
+	}
+
+	/**Returns a word of random lower case letters */
+	private String randomWord(int length)
+	{
+		char[] letters = new char[length];
+		for(int x = 0; x < length; x++)
+		{
+			letters[x] = (char) ('a' + random.nextInt(26));
+		}
+		return new String(letters);
+	}
+
+	/**Returns the number of messages checked per second */
+	private static long perSecond(int messages, long nanoseconds)
+	{
+		return (long) (messages / (nanoseconds / 1e9));
+	}
+
+}
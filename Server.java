@@ -1,7 +1,37 @@
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**Class containing {@link Server#main(String[])} which creates and runs a messaging server 
  * which people using a client program can connect to using the IP address and port number.*/
@@ -10,126 +40,341 @@ public class Server
 	/**To be used to create sockets for client sessions */
 	private ServerSocket ss;
 
+	/**Extra server sockets listening on the same port as ss using SO_REUSEPORT, one for each extra acceptor thread, so that the 
+	 * operating system shares new connections between them. Empty unless the server is started with --reusePort=true and --acceptors.*/
+	private ArrayList<ServerSocket> extraServerSockets = new ArrayList<ServerSocket>();
+
+	/**The most connections that can wait to be accepted. This is much higher than the default of 50 so that clients are not 
+	 * refused when they all reconnect at once, such as after a network problem.*/
+	private static final int ACCEPT_BACKLOG = 1024;
+
 	/**Collection of clientSessions running on the server that can be accessed using the clientSession object.
 	 * <br> Accesses to clientSessions must be synchronized to prevent clashes as different threads access it.*/
 	private HashSet<ClientSession> clientSessions = new HashSet<ClientSession>();
 
 	/**For remembering the start time of the server after the server is set up. */
 	private long serverStartTime;
+
+	/**The settings the server was started with */
+	private ServerConfig config;
+
+	/**The port clients connect to, 0 if the user should be asked for it */
+	private int port;
+
+	/**The port admin commands are accepted on from this machine, 0 if there is no admin port */
+	private int adminPort;
+
+	/**The time (from {@link System#nanoTime()}) the server object was created, used to measure how long the server takes to start */
+	private long creationTime = System.nanoTime();
+
+	/**The time (in milliseconds) the server took to start accepting clients, after the program was started */
+	private long startupTime;
+
+	/**Every message clients send goes through this before it is sent, so it can be filtered */
+	private MessagePipeline pipeline = new MessagePipeline();
+
+	/**The stage of the {@link Server#pipeline} that filters the words in the filter.file setting, null if there is no word list */
+	private WordFilter wordFilter;
+
+	/**The file the {@link Server#wordFilter}'s words are read from, read again by /reloadFilter */
+	private File filterFile;
+
+	/**How long traced messages took at each stage on the server, shown by /latency. See {@link MessageTrace}.*/
+	private final LatencyHistogram clientToServer = new LatencyHistogram("Client send to server read"),
+			readToDispatch = new LatencyHistogram("Server read to dispatch"),
+			dispatchToEnqueue = new LatencyHistogram("Dispatch to queued for recipient"),
+			enqueueToWrite = new LatencyHistogram("Queued to written to recipient's socket");
+
+	/**Message telling users the server's address, worked out by {@link Server#findServerAddress()} so that 
+	 * looking up the address does not hold up starting the server or answering /IP */
+	private volatile String serverAddress = "The server address is still being looked up.";
+
+	/**Writes the messages the server logs (such as clients joining and the messages they send) on a background thread.
+	 * Responses to admin commands are still printed straight away.*/
+	private ServerLog log;
+
+	/**Index of the topics each clientSession is subscribed to, used by {@link Server#publish(String,String,String)}.
+	 * <br> This does not need to be synchronized on clientSessions as it handles its own locking.*/
+	private TopicRegistry topics;
+
+	/**How long (in milliseconds) the unacknowledged messages of a disconnected client are kept so the client can resume its session */
+	private long resumeTimeout;
+
+	/**Outboxes of clients that lost connection, stored by session token so the client can resume with {@link ClientSession#resumeSession(String)}.
+	 * <br> Accesses to detachedOutboxes must be synchronized on clientSessions.*/
+	private HashMap<String, Outbox> detachedOutboxes = new HashMap<String, Outbox>();
+
+	/**The number of clients disconnected because they had too many unacknowledged messages, see {@link Outbox#MAX_UNACKNOWLEDGED} */
+	private final AtomicLong overflowedSessions = new AtomicLong();
+
+	/**The most messages a client can send in one /batch command */
+	private int maxBatchSize;
+
+	/**The number of threads accepting clients, see {@link Server#createSessionsOnRequest()} */
+	private int acceptors;
+
+	/**The most whispers the {@link Server#mailbox} stores for each name */
+	private int mailboxQuota;
+
+	/**How long (in milliseconds) the {@link Server#mailbox} keeps whispers */
+	private long mailboxTimeToLive;
+
+	/**How long (in milliseconds) the {@link Server#mailbox} remembers a name after its owner was last in the server */
+	private long nameTimeToLive;
+
+	/**The time (in milliseconds) clients are told to spread their reconnections over when the server drains,
+	 * so they do not all reconnect to the new server at once */
+	private static final long RECONNECT_WINDOW = 5000;
+
+	/**Stores whispers to clients who have joined the server before but are not in it now, so they get them when they next join.
+	 * Null unless the server is started with --mailbox.dir=(directory).*/
+	private Mailbox mailbox;
+
+	/**The outputs of the programs connected to the admin port, so messages for the admin can be sent to them with {@link Server#writeToAdmin(String)} */
+	private final CopyOnWriteArrayList<JsonAdminOutput> adminOutputs = new CopyOnWriteArrayList<JsonAdminOutput>();
+
+	/**What happened to a whisper sent with {@link Server#whisper(String,String,String)} */
+	private enum WhisperResult {SENT, STORED, MAILBOX_FULL, NOBODY}
+
+	/**What happened when a client subscribed with {@link TopicRegistry#subscribe(String,ClientSession)} */
+	private enum SubscribeResult {SUBSCRIBED, ALREADY_SUBSCRIBED, TOO_MANY_SUBSCRIPTIONS, TOO_MANY_TOPICS}
+
+	/**Becomes true when the server starts draining using {@link Server#drain(long,AdminOutput)} */
+	private final AtomicBoolean draining = new AtomicBoolean();
 	
-	/**Main method creates an new instance of the server class and runs it using {@link Server#runServer()}
-     * @param args Unused command line arguments*/
+	/**Main method reads the settings from the command line arguments, creates an new instance of the server class 
+	 * and runs it using {@link Server#runServer()}
+     * @param args Settings in the form --(setting)=(value), see {@link ServerConfig}*/
     public static void main(String[] args)
     {
-		Server myServer = new Server();
+		ServerConfig config;
+		Server myServer;
+		try
+		{
+			config = new ServerConfig(args);
+			myServer = new Server(config);
+		}
+		catch(Exception e)
+		{
+			System.out.println(e.getMessage());
+			System.out.println(ServerConfig.USAGE);
+			System.exit(1);
+			return;
+		}
+		if(config.getBoolean("help", false))
+		{
+			System.out.println(ServerConfig.USAGE);
+			return;
+		}
 		myServer.runServer();
 	}
+
+	/**Creates a server using the settings given
+	 * @param config The settings for the server
+	 * @throws IllegalArgumentException If a setting that should be a number is not, or is out of range*/
+	Server(ServerConfig config)
+	{
+		this.config = config;
+		port = config.getInt("port", 0, 1, 65535);
+		adminPort = config.getInt("adminPort", 0, 1, 65535);
+		log = new ServerLog(config);
+		resumeTimeout = config.getLong("resumeTimeoutSeconds", 60, 1, 365 * 24 * 3600) * 1000;
+		maxBatchSize = config.getInt("maxBatchSize", 10000, 1, 1000000);
+		acceptors = config.getInt("acceptors", 1, 1, 1024);
+		mailboxQuota = config.getInt("mailbox.quota", 100, 1, Integer.MAX_VALUE);
+		mailboxTimeToLive = config.getLong("mailbox.ttlHours", 24 * 7, 1, 100 * 365 * 24) * 3600000;
+		nameTimeToLive = config.getLong("mailbox.nameTtlDays", 30, 1, 100 * 365) * 24 * 3600000;
+		topics = new TopicRegistry(config.getInt("maxSubscriptions", 100, 1, Integer.MAX_VALUE), config.getInt("maxTopics", 10000, 1, Integer.MAX_VALUE));
+	}
 	
 	/**Runs the methods required to run the server.
      * <br> Calls {@link Server#setupServer()}
-	 * <br> Calls {@link Server#handleServerCommands()} and {@link Server#createSessionsOnRequest()} which run concurrently.*/
+	 * <br> Calls {@link Server#handleServerCommands()}, {@link Server#handleAdminConnections()} and 
+	 * {@link Server#createSessionsOnRequest()} which run concurrently.*/
 	private void runServer()
 	{
 		try
 		{
+			setupMailbox();
+			setupFilter();
 			setupServer();
 			handleServerCommands();
+			handleAdminConnections();
+			reportStartupTime();
 			createSessionsOnRequest();
 		}
 		catch(Exception e)
 		{
 			System.err.println("There was an exception while running server. More information: "); e.printStackTrace();
-			shutdown(); //Shuts down the server if an exception occurs due to a connection failure.
+			shutdown(1); //Shuts down the server if an exception occurs due to a connection failure, so a supervisor can see it failed
 		}
 		
     }
 	
-	/**Initialises the serverSocket with a port number inputted by the user so that it can be used to create sockets for client sessions.
+	/**Initialises the serverSocket with the port setting, or a port number inputted by the user if there is no port setting,
+	 * so that it can be used to create sockets for client sessions.
+	 * <br> If the reusePort setting is true, the port is opened with SO_REUSEPORT so another server can use it at the same time.
      * <br> Also calls {@link System#currentTimeMillis()} to record the start time for the server
 	 * <br> Calls {@link Server#handleServerCommands()} and {@link Server#createSessionsOnRequest()} which run concurrently.
 	 * @throws Exception Caused by problems with the network or creating the server socket*/
 	private void setupServer() throws Exception
 	{
-		System.out.println("What port number would you like to use for this server?");
-		ss = new ServerSocket(Selector.selectOptionInt(1025,65535)); //User is allowed to select viable a port number
+		if(port == 0)
+		{
+			System.out.println("What port number would you like to use for this server?");
+			port = Selector.selectOptionInt(1025,65535); //User is allowed to select viable a port number
+		}
+
+		ss = openServerSocket(port);
 		
 		serverStartTime = System.currentTimeMillis();
+		findServerAddress();
 		
-		//Writes the IP address of the system running the server
-		System.out.println("The message server at "+ InetAddress.getLocalHost()+ " is now waiting for connections...");
+		System.out.println("The message server on port "+ss.getLocalPort()+" is now waiting for connections...");
 		
 		System.out.println("As the server admin, you can talk to the clients by typing things and pressing enter,");
 		System.out.println("you can also use commands to control the server. Type /help for a list of commands.");
 		
 	}
 	
-	/**Creates and runs a new thread which will recieve input from the admin at the server side and perform the corresponding action
-	 * <br> Calls a multitude of different methods depending on the admin's input, will process the command if it begins with / or
-	 * {@link Server#broadcast(String)} the input if it doesn't. Calls {@link Server#shutdown()} if an exception occurs. */
+	/**Works out the message /IP replies with. If the server is bound to an address that is used straight away, 
+	 * otherwise the address is looked up on another thread since looking up the local host can wait on DNS.*/
+	private void findServerAddress()
+	{
+		InetAddress bound = ss.getInetAddress();
+		if(bound != null && !bound.isAnyLocalAddress())
+		{
+			serverAddress = "The server is at: "+bound.getHostAddress()+":"+ss.getLocalPort();
+			return;
+		}
+
+		Thread addressThread = new Thread()
+		{
+			public void run()
+			{
+				try 
+				{
+					serverAddress = "The server is at: "+InetAddress.getLocalHost();
+					log.info(serverAddress);
+				}
+				catch(IOException e) 
+				{
+					serverAddress = "The server address could not be retreived";
+					log.error("Problem getting the IP address.", e);
+				}
+			}
+		};
+		addressThread.setDaemon(true);
+		addressThread.start();
+	}
+
+	/**Prints how long the server took to start accepting clients, both since the server was created and since the program started */
+	private void reportStartupTime()
+	{
+		startupTime = (System.nanoTime() - creationTime) / 1000000;
+		String message = "The server started in "+startupTime+" ms";
+		Optional<Instant> processStart = ProcessHandle.current().info().startInstant();
+		if(processStart.isPresent())
+		{
+			message += " ("+Duration.between(processStart.get(), Instant.now()).toMillis()+" ms since the program started)";
+		}
+		System.out.println(message+".");
+	}
+
+	/**Adds the filters to the {@link Server#pipeline}. If the filter.file setting is given, the words in that file are
+	 * replaced with *s (or the messages are blocked if filter.mode is block). If filter.blockLinks is true, messages 
+	 * with links in are blocked.
+	 * @throws IOException Caused by the word list being unable to be read*/
+	private void setupFilter() throws IOException
+	{
+		String fileName = config.getString("filter.file", null);
+		if(fileName != null)
+		{
+			String mode = config.getString("filter.mode", "mask");
+			if(!mode.equals("mask") && !mode.equals("block")) throw new IllegalArgumentException("The setting filter.mode must be mask or block");
+			filterFile = new File(fileName);
+			WordMatcher matcher = WordMatcher.load(filterFile);
+			wordFilter = new WordFilter(matcher, mode.equals("block"));
+			pipeline.addStage(wordFilter);
+			System.out.println("Filtering "+matcher.getWordCount()+" words from "+filterFile+".");
+		}
+		if(config.getBoolean("filter.blockLinks", false))
+		{
+			pipeline.addStage( new WordFilter(new WordMatcher(Arrays.asList("http://", "https://", "www.")), true) );
+		}
+	}
+
+	/**Opens the {@link Server#mailbox} if the mailbox.dir setting is given. The most whispers stored for each client and 
+	 * how long they are kept for can be set with mailbox.quota (100 if not set) and mailbox.ttlHours (a week if not set).
+	 * Names that have not been in the server for mailbox.nameTtlDays (30 if not set) are forgotten.
+	 * @throws IOException Caused by the mailbox directory being unable to be read or created*/
+	private void setupMailbox() throws IOException
+	{
+		String directory = config.getString("mailbox.dir", null);
+		if(directory == null) return;
+		mailbox = new Mailbox(new File(directory), mailboxQuota, mailboxTimeToLive, nameTimeToLive, log);
+		System.out.println("Whispers to clients who are not in the server will be stored in "+directory+".");
+	}
+
+	/**Creates a server socket listening on the port for clients to connect to.
+	 * <br> The socket is bound to the bindAddress setting, or every address if it is not set.
+	 * <br> Using the reusePort setting opens the port with SO_REUSEPORT, which lets a new server listen on the port while this one drains
+	 * and lets {@link Server#createSessionsOnRequest()} open more than one server socket on the port.
+	 * @param port The port number to listen on
+	 * @return ServerSocket - The server socket
+	 * @throws IOException Caused by the port not being available*/
+	private ServerSocket openServerSocket(int port) throws IOException
+	{
+		ServerSocket serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		if( config.getBoolean("reusePort", false) && serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT) )
+		{
+			serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		}
+		String bindAddress = config.getString("bindAddress", null);
+		if(bindAddress == null) serverSocket.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+		else serverSocket.bind(new InetSocketAddress(InetAddress.getByName(bindAddress), port), ACCEPT_BACKLOG);
+		return serverSocket;
+	}
+
+	/**Returns true if the server socket was opened with SO_REUSEPORT */
+	private boolean isReusingPort() throws IOException
+	{
+		return ss.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT) && ss.getOption(StandardSocketOptions.SO_REUSEPORT);
+	}
+
+	/**Creates and runs a new thread which will recieve input from the admin at the server side and pass it to 
+	 * {@link Server#processAdminInput(String,AdminOutput)}. If there is no console (such as when the server is run in the 
+	 * background) the thread is not started, and the admin port started by {@link Server#handleAdminConnections()} can be used instead.*/
 	private void handleServerCommands()
 	{
+		if(System.console() == null)
+		{
+			System.out.println("There is no console to type server commands into, use the admin port to control the server.");
+			return;
+		}
+
 		//Creating a thread to get input from the server admin to control the server
 		Thread serverCommandsThread = new Thread()
 		{
 			//implementing run method of thread
 			public void run()
 			{
+				AdminOutput output = new ConsoleAdminOutput();
 				while(true)
 				{
 					try
 					{
 						String adminInput = System.console().readLine();
 						
-						if(!adminInput.equals("")) //don't bother with comparison if theres no input
-						{
-							if(adminInput.charAt(0) == '/' ) //If theres a / then decide on the command
-							{
-								if(adminInput.equals("/help"))
-								{
-									printAdminCommands();
-								}
-								else if(adminInput.startsWith("/whisper")) 
-								{
-									processWhisperAdminCommand(adminInput);
-								}
-								else if(adminInput.startsWith("/kick")) 
-								{
-									processKickAdminCommand(adminInput);
-								}
-								else if( adminInput.equals("/serverTime") )
-								{
-									System.out.println("The server has been up for "+getServerRunTime()+" seconds.");
-								}
-								else if(adminInput.startsWith("/clientTime")) 
-								{
-									processClientTimeAdminCommand(adminInput);
-								}
-								else if( adminInput.equals("/IP") ) 
-								{
-									System.out.println( getServerAddress() );
-								}
-								else if( adminInput.equals("/clients") ) 
-								{
-									System.out.println( getNumberOfClients() );
-								}
-								else if(adminInput.equals("/close")) 
-								{
-									shutdown();
-								}
-								else 
-								{
-									System.out.println("That is not a valid command, type /help for a list of commands.");
-								}
-							}
-							else broadcast("ADMIN: " + adminInput);
-						
-						}
+						//The console has been closed, so stop reading from it rather than shutting down the server
+						if(adminInput == null) return;
+
+						processAdminInput(adminInput, output);
 					}
-					//Catching nullPointer and IO exceptions
 					catch(Exception e)
 					{
 						System.err.println("There was an exception while processing input from the server admin. More information: "); e.printStackTrace();
-						shutdown();
 					}
 					
 				}
@@ -140,69 +385,260 @@ public class Server
 		serverCommandsThread.start(); //Start running the thread
 	}
 
-	/**Prints the commands the admin can type to the command line */
-	private void printAdminCommands()
+	/**Creates and runs a thread which accepts connections to the admin port if an admin port has been set with the
+	 * adminPort setting (e.g. java Server --adminPort=4000). The admin port only accepts connections from
+	 * the same machine, and each connection is handled by an {@link AdminSession}.
+	 * @throws IOException Caused by the admin port not being available*/
+	private void handleAdminConnections() throws IOException
 	{
-		System.out.println(	"/help - get list of commands you can use \n" +
-							"/whisper (name) (message) - send a message to one person only \n" +
-							"/kick (name) - kicks a client out of the server \n" +
-							"/serverTime - get how long the server has been running for \n" +
-							"/clientTime (name) - get how long a client has been connected for \n" +
-							"/IP - get the servers IP address \n" +
-							"/clients - get the number of clients in the server \n" +
-							"/close - shutdown the server");
-	}
+		if(adminPort == 0) return;
 
-	/**processes the command string to get the name of the client to send the message to and the message strings.
-	 * <br> If the command format is crrect, calls {@link Server#whisper(String,String,String)} using the 
-	 * sender name "ADMIN" and the reciever and message strings.
-	 * @param adminInput The full command inputted by the admin*/
-	private void processWhisperAdminCommand(String adminInput)
-	{
-		try
-		{
-			String[] parts = adminInput.trim().split(" "); //Splits the command into the different words
-			String reciever = parts[1]; //Second word is the reciever
-			String message = parts[2]; //Third word is first word of message
+		final ServerSocket adminSocket = new ServerSocket(adminPort, 50, InetAddress.getLoopbackAddress());
+		System.out.println("The admin port "+adminPort+" is now waiting for connections from this machine.");
 
-			//adds remaining words to the first word of the message
-			if(parts.length > 3)
+		Thread adminConnectionsThread = new Thread()
+		{
+			public void run()
 			{
-				for(int x = 3; x < parts.length; x++)
+				while(!adminSocket.isClosed())
 				{
-					message = message.concat(" "+parts[x]);
+					try
+					{
+						new AdminSession(adminSocket.accept()).start();
+						log.debug("An admin program has connected to the admin port.");
+					}
+					catch(IOException e)
+					{
+						continue; //Continue running the loop if an admin fails to connect
+					}
 				}
 			}
-			whisper("ADMIN", reciever, message);
+		};
+		adminConnectionsThread.setDaemon(true);
+		adminConnectionsThread.start();
+	}
+
+	/**Performs the action for a line of input from the admin, either from the command line or the admin port.
+	 * <br> Calls a multitude of different methods depending on the admin's input, will process the command if it begins with / or
+	 * {@link Server#broadcast(String)} the input if it doesn't.
+	 * @param adminInput The line inputted by the admin
+	 * @param output Where the result of the command is written to*/
+	private void processAdminInput(String adminInput, AdminOutput output)
+	{
+		if(adminInput.equals("")) return; //don't bother with comparison if theres no input
+
+		if(adminInput.charAt(0) == '/' ) //If theres a / then decide on the command
+		{
+			if(adminInput.equals("/help"))
+			{
+				output.reply( getAdminCommands() );
+			}
+			else if(adminInput.startsWith("/whisper")) 
+			{
+				processWhisperAdminCommand(adminInput, output);
+			}
+			else if(adminInput.startsWith("/kick")) 
+			{
+				processKickAdminCommand(adminInput, output);
+			}
+			else if(adminInput.startsWith("/trust")) 
+			{
+				processTrustAdminCommand(adminInput, true, output);
+			}
+			else if(adminInput.startsWith("/untrust")) 
+			{
+				processTrustAdminCommand(adminInput, false, output);
+			}
+			else if( adminInput.equals("/serverTime") )
+			{
+				long serverTime = getServerRunTime();
+				output.reply("The server has been up for "+serverTime+" seconds.", "serverTime", serverTime);
+			}
+			else if(adminInput.startsWith("/clientTime")) 
+			{
+				processClientTimeAdminCommand(adminInput, output);
+			}
+			else if( adminInput.equals("/IP") ) 
+			{
+				output.reply( getServerAddress() );
+			}
+			else if( adminInput.equals("/clients") ) 
+			{
+				output.reply( getNumberOfClients(), "clients", getClientCount() );
+			}
+			else if(adminInput.startsWith("/publish"))
+			{
+				processPublishAdminCommand(adminInput, output);
+			}
+			else if( adminInput.equals("/topics") )
+			{
+				int numberOfTopics = topics.getNumberOfTopics();
+				output.reply("There are "+numberOfTopics+" topics with subscribers on the server.", "topics", numberOfTopics);
+			}
+			else if( adminInput.equals("/stats") )
+			{
+				processStatsAdminCommand(output);
+			}
+			else if(adminInput.startsWith("/drain"))
+			{
+				processDrainAdminCommand(adminInput, output);
+			}
+			else if(adminInput.equals("/reloadFilter"))
+			{
+				processReloadFilterAdminCommand(output);
+			}
+			else if(adminInput.equals("/latency"))
+			{
+				processLatencyAdminCommand(output);
+			}
+			else if(adminInput.equals("/close")) 
+			{
+				output.reply("The server is shutting down.");
+				shutdown();
+			}
+			else 
+			{
+				output.error("That is not a valid command, type /help for a list of commands.");
+			}
 		}
-		//Catching out of bounds and conversion exceptions
-		catch(Exception e) 
+		else
 		{
-			System.out.println("The format is incorrect. Please make sure your command is in the form /whisper (name) (message)");
+			broadcast("ADMIN: " + adminInput);
+			output.reply("Sent to everyone.");
 		}
 	}
 
+	/**Returns the commands the admin can type */
+	private String getAdminCommands()
+	{
+		return	"/help - get list of commands you can use \n" +
+				"/whisper (name) (message) - send a message to one person only \n" +
+				"/kick (name) - kicks a client out of the server \n" +
+				"/trust (name) - allow a client (such as a bot) to send messages in batches using /batch \n" +
+				"/untrust (name) - stop a client from sending messages in batches \n" +
+				"/serverTime - get how long the server has been running for \n" +
+				"/clientTime (name) - get how long a client has been connected for \n" +
+				"/IP - get the servers IP address \n" +
+				"/clients - get the number of clients in the server \n" +
+				"/publish (topic) (message) - send a message to everyone subscribed to a topic \n" +
+				"/topics - get the number of topics clients are subscribed to \n" +
+				"/stats - get the server's statistics all at once \n" +
+				"/drain (seconds) - stop accepting clients, tell clients to reconnect and shutdown once their messages are delivered \n" +
+				"/reloadFilter - read the word filter's list of words again \n" +
+				"/latency - get how long messages traced by clients took at each stage \n" +
+				"/close - shutdown the server";
+	}
+
 	/**processes the command string to get the name of the client to send the message to and the message strings.
 	 * <br> If the command format is crrect, calls {@link Server#whisper(String,String,String)} using the 
 	 * sender name "ADMIN" and the reciever and message strings.
-	 * @param adminInput The full command inputted by the admin*/
-	private void processKickAdminCommand(String adminInput)
+	 * @param adminInput The full command inputted by the admin
+	 * @param output Where the result of the command is written to*/
+	private void processWhisperAdminCommand(String adminInput, AdminOutput output)
 	{
-		try
+		String[] parts = adminInput.trim().split(" ", 3); //Splits the command into the command, reciever and message
+		if(parts.length < 3)
+		{
+			output.error("The format is incorrect. Please make sure your command is in the form /whisper (name) (message)");
+			return;
+		}
+
+		WhisperResult result = whisper("ADMIN", parts[1], parts[2]);
+		if(result == WhisperResult.SENT)
+		{
+			output.reply("You whispered to "+parts[1]+": "+parts[2]);
+		}
+		else if(result == WhisperResult.STORED)
+		{
+			output.reply(parts[1]+" is not in the server, they will get your whisper when they next join.");
+		}
+		else if(result == WhisperResult.MAILBOX_FULL)
+		{
+			output.error(parts[1]+" is not in the server and has too many whispers waiting for them.");
+		}
+		else output.error("There is nobody in the server called \""+parts[1]+"\".");
+	}
+
+	/**processes the command string to get the topic and the message strings.
+	 * <br> If the command format is correct, calls {@link Server#publish(String,String,String)} using the 
+	 * sender name "ADMIN" and the topic and message strings.
+	 * @param adminInput The full command inputted by the admin
+	 * @param output Where the result of the command is written to*/
+	private void processPublishAdminCommand(String adminInput, AdminOutput output)
+	{
+		String[] parts = adminInput.trim().split(" ", 3); //Splits the command into the command, topic and message
+		if(parts.length < 3)
+		{
+			output.error("The format is incorrect. Please make sure your command is in the form /publish (topic) (message)");
+			return;
+		}
+		output.reply( publish("ADMIN", parts[1], parts[2]) );
+	}
+
+	/**processes the command string to get the name of the client to kick, then calls {@link Server#kickClient(String)}
+	 * @param adminInput The full command inputted by the admin
+	 * @param output Where the result of the command is written to*/
+	private void processKickAdminCommand(String adminInput, AdminOutput output)
+	{
+		String clientToKick = getNameAfterCommand(adminInput);
+		if(clientToKick.isEmpty())
+		{
+			output.error("Please include the name of the client to kick after the kick command");
+		}
+		else if( kickClient(clientToKick) )
+		{
+			output.reply(clientToKick+" has been kicked from the server.");
+		}
+		else output.error("There is nobody in the server called \""+clientToKick+"\".");
+	}
+
+	/**Returns everything after the first word of a command, so names with spaces in can be used
+	 * @param adminInput The full command inputted by the admin
+	 * @return String - The name after the command, or an empty string if there is none*/
+	private static String getNameAfterCommand(String adminInput)
+	{
+		String command = adminInput.trim();
+		int space = command.indexOf(' ');
+		if(space == -1) return "";
+		return command.substring(space, command.length()).trim();
+	}
+
+	/**processes the command string to get the name of the client, then allows or stops the client sending 
+	 * messages with /batch using {@link ClientSession#setTrusted(boolean)}.
+	 * @param adminInput The full command inputted by the admin
+	 * @param trust true for /trust, false for /untrust
+	 * @param output Where the result of the command is written to*/
+	private void processTrustAdminCommand(String adminInput, boolean trust, AdminOutput output)
+	{
+		String clientName = getNameAfterCommand(adminInput);
+		if(clientName.isEmpty())
 		{
-			String clientToKick = adminInput.substring(6, adminInput.length()).trim();
-			kickClient( clientToKick );
+			output.error("Please include the name of the client after the command");
+			return;
 		}
-		catch(StringIndexOutOfBoundsException e)
+
+		synchronized(clientSessions)
 		{
-			System.out.println("Please include the name of the client to kick after the kick command");
+			for(ClientSession session : clientSessions)
+			{
+				if(session.getClientName() == null) {} //Do nothing (move onto next x)
+				else if( session.getClientName().equals(clientName) ) 
+				{
+					session.setTrusted(trust);
+					if(trust) output.reply(clientName+" can now send messages in batches.");
+					else output.reply(clientName+" can no longer send messages in batches.");
+					return;
+				}
+			}
+			output.error("There is nobody in the server called \""+clientName+"\"."); 
 		}
 	}
 
 	/**Compares the name inputted with the name of every client on the server and calls
 	 * {@link ClientSession#forceSocketClose()} on this session if the name matches to cause the client to disconnect due to an exception.
-	 * @param clientToKick The name of the client to kick*/
-	private void kickClient(String clientToKick)
+	 * @param clientToKick The name of the client to kick
+	 * @return boolean - true if there was a client with that name*/
+	boolean kickClient(String clientToKick)
 	{
 		//Since we are accessing clientSessions, this block must 
 		//be synchronized because other concurrent processes access clientSessions too
@@ -220,14 +656,14 @@ public class Server
 					}
 					catch(IOException e)
 					{
-						System.err.println("The socket could not be closed so the client cannot be kicked"); e.printStackTrace();
+						log.error("The socket could not be closed so the client cannot be kicked", e);
 					}
-					return;
+					return true;
 				}
 				
 			}
-			//Printed if the return is never called after the client is found.
-			System.out.println("There is nobody in the server called \""+clientToKick+"\"."); 
+			//Reached if the return is never called after the client is found.
+			return false;
 
 		}
 
@@ -235,53 +671,144 @@ public class Server
 
 	/**processes the command string to get the name of the client to get the time from, 
 	 * it then finds the client and gets the time using {@link ClientSession#getClientRunTime()}.
-	 * @param adminInput The full command inputted by the admin*/
-	private void processClientTimeAdminCommand(String adminInput)
+	 * @param adminInput The full command inputted by the admin
+	 * @param output Where the result of the command is written to*/
+	private void processClientTimeAdminCommand(String adminInput, AdminOutput output)
 	{
-		try
+		String clientName = getNameAfterCommand(adminInput);
+		if(clientName.isEmpty())
 		{
-			//Processing the command to get the name of the client
-			String clientToCheck = adminInput.substring(12, adminInput.length()).trim();
+			output.error("Please include the name of the client after the command");
+			return;
+		}
 
-			boolean found = false;
-			synchronized(clientSessions)
+		synchronized(clientSessions)
+		{
+			for(ClientSession session : clientSessions)
 			{
-				//Writing to every client by looping through every clientSession
-				for(ClientSession session : clientSessions)
+				if(session.getClientName() == null) {} //Do nothing (move onto next x)
+				else if( session.getClientName().equals(clientName) ) 
 				{
-					if(session.getClientName() == null) {} //Do nothing (move onto next x)
-					else if( session.getClientName().equals(clientToCheck) ) 
-					{
-						System.out.println("The client has been connected for "+session.getClientRunTime()+" seconds.");
-						found = true;
-						break; //Stop loop since the clients been found
-					}
-					
+					long clientTime = session.getClientRunTime();
+					output.reply("The client has been connected for "+clientTime+" seconds.", "clientTime", clientTime);
+					return; //Stop since the clients been found
 				}
-				if(found == false) System.out.println("There is nobody in the server called \""+clientToCheck+"\".");
 				
 			}
+			output.error("There is nobody in the server called \""+clientName+"\".");
+		}
+	}
+
+	/**processes the command string to get the most seconds to wait for messages to be delivered, then calls 
+	 * {@link Server#drain(long,AdminOutput)}. If no time is given, the server waits for up to 10 seconds.
+	 * @param adminInput The full command inputted by the admin
+	 * @param output Where the result of the command is written to*/
+	private void processDrainAdminCommand(String adminInput, AdminOutput output)
+	{
+		String[] parts = adminInput.trim().split(" ");
+		long seconds = 10;
+		try
+		{
+			if(parts.length == 2) seconds = Long.parseLong(parts[1]);
+			else if(parts.length > 2) throw new NumberFormatException();
+		}
+		catch(NumberFormatException e)
+		{
+			output.error("The format is incorrect. Please make sure your command is in the form /drain (seconds)");
+			return;
+		}
+		drain(seconds * 1000, output);
+	}
+
+	/**Reads the word filter's file again and starts using the new list of words without stopping the server. 
+	 * If the file cannot be read or is too big the old list is kept.
+	 * @param output Where the result of the command is written to*/
+	private void processReloadFilterAdminCommand(AdminOutput output)
+	{
+		if(wordFilter == null)
+		{
+			output.error("There is no word filter, start the server with the filter.file setting to use one.");
+			return;
+		}
+
+		try
+		{
+			long startTime = System.nanoTime();
+			WordMatcher matcher = WordMatcher.load(filterFile);
+			wordFilter.setMatcher(matcher);
+			long loadTime = (System.nanoTime() - startTime) / 1000000;
+			output.reply("The word filter now has "+matcher.getWordCount()+" words, they took "+loadTime+" ms to load.", 
+					"words", matcher.getWordCount(), "loadMillis", loadTime);
+		}
+		catch(IOException e)
+		{
+			output.error("The word filter could not be read, the old list of words is still being used. "+e.getMessage());
+		}
+		catch(IllegalArgumentException e)
+		{
+			output.error("The word filter could not be used, the old list of words is still being used. "+e.getMessage());
+		}
+	}
+
+	/**Replies with how long the messages clients traced took at each stage, from the client sending them to the server writing 
+	 * them to each recipient. Clients choose which messages to trace, see {@link MessageTrace}.
+	 * @param output Where the times are written to*/
+	private void processLatencyAdminCommand(AdminOutput output)
+	{
+		LatencyHistogram[] stages = {clientToServer, readToDispatch, dispatchToEnqueue, enqueueToWrite};
+		String[] keys = {"clientToServer", "readToDispatch", "dispatchToEnqueue", "enqueueToWrite"};
+		StringBuilder message = new StringBuilder();
+		Object[] fields = new Object[stages.length * 8];
+		for(int x = 0; x < stages.length; x++)
+		{
+			if(x > 0) message.append(" \n");
+			message.append(stages[x].getSummary());
+			fields[x * 8] = keys[x]+".count";
+			fields[x * 8 + 1] = stages[x].getCount();
+			fields[x * 8 + 2] = keys[x]+".p50Micros";
+			fields[x * 8 + 3] = stages[x].getPercentile(50);
+			fields[x * 8 + 4] = keys[x]+".p99Micros";
+			fields[x * 8 + 5] = stages[x].getPercentile(99);
+			fields[x * 8 + 6] = keys[x]+".maxMicros";
+			fields[x * 8 + 7] = stages[x].getSlowest();
 		}
-		//The occurs if the command is not written correctly
-		catch(StringIndexOutOfBoundsException e)
+		output.reply(message.toString(), fields);
+	}
+
+	/**Replies with the server's statistics in one line, so that programs using the admin port can check them with one command.
+	 * @param output Where the statistics are written to*/
+	private void processStatsAdminCommand(AdminOutput output)
+	{
+		long serverTime = getServerRunTime();
+		int clients = getClientCount();
+		int numberOfTopics = topics.getNumberOfTopics();
+		int detached;
+		synchronized(clientSessions)
 		{
-			System.out.println("Please include the name of the client after the command");
+			detached = detachedOutboxes.size();
 		}
+		output.reply("Up for "+serverTime+" seconds with "+clients+" clients, "+numberOfTopics+" topics and "+detached+" sessions waiting to resume.",
+				"serverTime", serverTime, "clients", clients, "topics", numberOfTopics, "detachedSessions", detached, "draining", draining.get(),
+				"startupMillis", startupTime, "blockedMessages", pipeline.getBlockedCount(), "overflowedSessions", overflowedSessions.get());
 	}
 
-	/**Sends a private message from the sender to the reciever 
+	/**Sends a private message from the sender to the reciever.
+	 * <br> If the reciever's client acknowledges messages (see {@link Outbox}), the sender is also told 
+	 * when the reciever's client has recieved the whisper. If the reciever is not in the server but has joined before,
+	 * the whisper is stored in the {@link Server#mailbox} (if there is one) until they next join.
 	 * @param sender The name of the client(or ADMIN) sending the message
 	 * @param reciever The of name the client(or ADMIN) recieving the message
-	 * @param message The message being sent*/
-	private void whisper(String sender, String reciever, String message)
+	 * @param message The message being sent
+	 * @return WhisperResult - Whether the whisper was sent, stored or could not be sent*/
+	private WhisperResult whisper(final String sender, final String reciever, String message)
 	{
 		boolean sent = false; //will become true when sending is confirmed
 		synchronized(clientSessions)
 		{
-			//Print message to command line if reciever is ADMIN
+			//Print message to command line (and admin connections) if reciever is ADMIN
 			if( reciever.equals("ADMIN") )
 			{
-				System.out.println(sender+" whispered to you: "+message);
+				writeToAdmin(sender+" whispered to you: "+message);
 				sent = true;
 			}
 			//print message to client with the correct name if reciever is not ADMIN
@@ -293,59 +820,232 @@ public class Server
 					if(session.getClientName() == null) {} //Do nothing (move onto next x)
 					else if( session.getClientName().equals(reciever) )
 					{
-						session.writeToClient(sender+" whispered to you: "+message);
+						//Runs when the reciever's client acknowledges the whisper
+						Runnable receipt = new Runnable()
+						{
+							public void run()
+							{
+								writeToSender(sender, reciever+" has recieved your whisper.");
+							}
+						};
+						session.writeToClient(sender+" whispered to you: "+message, receipt);
 						sent = true;
 					}
 				}
 			}
 
-			//Confirm sending to sender if sending is successful
-			if(sent == true)
+		}
+
+		//Storing the whisper after leaving the synchronized block, since the mailbox reads and writes files
+		WhisperResult result = WhisperResult.SENT;
+		if(!sent)
+		{
+			result = (mailbox == null) ? WhisperResult.NOBODY : mailbox.store(reciever, sender, message);
+		}
+
+		//The reciever may have joined after they were looked for and already collected their whispers, so they are delivered now
+		if(result == WhisperResult.STORED)
+		{
+			ClientSession joined = null;
+			synchronized(clientSessions)
 			{
-				//Print message to command line if sender is ADMIN
-				if( sender.equals("ADMIN") )
-				{
-					System.out.println("You whispered to "+reciever+": "+message);
-				}
-				//print message to client with the correct name if sender is not ADMIN
-				else
+				for(ClientSession session : clientSessions)
 				{
-					for(ClientSession session : clientSessions)
-					{
-						if(session.getClientName() == null) {} //Do nothing (move onto next x)
-						else if( ("["+session.getClientName()+"]").equals(sender) )
-						{
-							session.writeToClient("You whispered to "+reciever+": "+message);
-						}
-					
-					}
+					if( reciever.equals(session.getClientName()) ) joined = session;
 				}
 			}
-			//Else tell them the reciever does not exist
-			else
+			if(joined != null) joined.deliverStoredWhispers(false);
+		}
+
+		//The admin is told by the command instead, since it may be using the admin port rather than the command line
+		if( sender.equals("ADMIN") ) return result;
+
+		//Confirm sending to sender if sending is successful
+		if(result == WhisperResult.SENT)
+		{
+			writeToSender(sender, "You whispered to "+reciever+": "+message);
+		}
+		else if(result == WhisperResult.STORED)
+		{
+			writeToSender(sender, reciever+" is not in the server, they will get your whisper when they next join.");
+		}
+		else if(result == WhisperResult.MAILBOX_FULL)
+		{
+			writeToSender(sender, reciever+" is not in the server and has too many whispers waiting for them.");
+		}
+		//Else tell them the reciever does not exist
+		else
+		{
+			writeToSender(sender, "There is nobody in the server called \""+reciever+"\".");
+		}
+		
+		return result;
+	}
+
+	/**Prints the message to the command line if the sender is ADMIN, otherwise writes it to the client the sender refers to.
+	 * @param sender The name of the client in square brackets (or ADMIN)
+	 * @param message The message to give to the sender*/
+	private void writeToSender(String sender, String message)
+	{
+		//Print message to command line (and admin connections) if sender is ADMIN
+		if( sender.equals("ADMIN") )
+		{
+			writeToAdmin(message);
+			return;
+		}
+		//print message to client with the correct name if sender is not ADMIN
+		synchronized(clientSessions)
+		{
+			for(ClientSession session : clientSessions)
 			{
-				//Print message to command line if sender is ADMIN
-				if( sender.equals("ADMIN") )
+				if(session.getClientName() == null) {} //Do nothing (move onto next x)
+				else if( ("["+session.getClientName()+"]").equals(sender) )
 				{
-					System.out.println("There is nobody in the server called \""+reciever+"\".");
+					session.writeToClient(message);
 				}
-				//print message to client with the correct name if sender is not ADMIN
-				else
+			}
+		}
+	}
+
+	/**Prints a message for the admin, such as a whisper to ADMIN, to the command line and sends it to every program 
+	 * connected to the admin port. These are not logged with {@link Server#log} so the log settings cannot hide them.
+	 * @param message The message for the admin*/
+	private void writeToAdmin(String message)
+	{
+		System.out.println(message);
+		for(JsonAdminOutput output : adminOutputs)
+		{
+			output.event(message);
+		}
+	}
+
+	/**Sends a message to every client subscribed to the topic, either directly or through a wildcard subscription.
+	 * <br> Unlike {@link Server#broadcast(String)} this does not lock clientSessions or print the message on the server,
+	 * the subscribers are looked up from {@link Server#topics} which is safe to read while other threads subscribe.
+	 * @param sender The name of the client(or ADMIN) publishing the message
+	 * @param topic The topic to publish to, this cannot contain wildcards
+	 * @param message The message being sent
+	 * @return String - Message telling the sender how many clients the message was sent to*/
+	private String publish(String sender, String topic, String message)
+	{
+		if( !TopicRegistry.isValidTopic(topic, false) )
+		{
+			return "\""+topic+"\" is not a valid topic. Topics are words separated by dots, e.g. news.sport";
+		}
+
+		ClientSession[] subscribers = topics.getSubscribers(topic);
+		String line = "("+topic+") "+sender+": "+message;
+		for(ClientSession session : subscribers)
+		{
+			session.writeToClient(line);
+		}
+		return "Published to "+subscribers.length+" subscribers of "+topic+".";
+	}
+
+	/**Sends every message in a batch from a trusted client. Each message is either * (message) to send to everyone, 
+	 * @(name) (message) to whisper to one client or #(topic) (message) to publish to a topic.
+	 * <br> Rather than calling {@link Server#broadcast(String)}, {@link Server#whisper(String,String,String)} and
+	 * {@link Server#publish(String,String,String)} for each message, clientSessions is only locked once to find the 
+	 * recipients, then each recipient gets all of its messages with one call to {@link ClientSession#writeToClient(ArrayList)}.
+	 * @param clientName The name of the client sending the batch
+	 * @param batch The lines of the batch
+	 * @return String - Message telling the sender how the batch was delivered*/
+	private String sendBatch(String clientName, ArrayList<String> batch)
+	{
+		String sender = "["+clientName+"]";
+		ClientSession[] sessions;
+		HashMap<String, ClientSession> sessionsByName = new HashMap<String, ClientSession>();
+		synchronized(clientSessions)
+		{
+			sessions = clientSessions.toArray(new ClientSession[clientSessions.size()]);
+			for(ClientSession session : sessions)
+			{
+				if(session.getClientName() != null) sessionsByName.put(session.getClientName(), session);
+			}
+		}
+
+		//The messages for each recipient, kept in the order they appear in the batch
+		IdentityHashMap<ClientSession, ArrayList<String>> deliveries = new IdentityHashMap<ClientSession, ArrayList<String>>();
+		int invalid = 0;
+		int unknownRecievers = 0;
+		int blocked = 0;
+		for(String line : batch)
+		{
+			int space = line.indexOf(' ');
+			if(space < 1 || space == line.length() - 1)
+			{
+				invalid++;
+				continue;
+			}
+			String target = line.substring(0, space);
+			String message = pipeline.process(clientName, line.substring(space + 1));
+			if(message == null)
+			{
+				blocked++;
+				continue;
+			}
+
+			if(target.equals("*"))
+			{
+				for(ClientSession session : sessions)
 				{
-					for(ClientSession session : clientSessions)
-					{
-						if(session.getClientName() == null) {} //Do nothing (move onto next x)
-						else if( ("["+session.getClientName()+"]").equals(sender) )
-						{
-							session.writeToClient("There is nobody in the server called \""+reciever+"\".");
-						}
-					
-					}
+					if(session.getClientName() != null) addDelivery(deliveries, session, sender+": "+message);
 				}
 			}
-			
+			else if(target.charAt(0) == '@')
+			{
+				ClientSession reciever = sessionsByName.get(target.substring(1));
+				if(reciever == null) unknownRecievers++;
+				else addDelivery(deliveries, reciever, sender+" whispered to you: "+message);
+			}
+			else if(target.charAt(0) == '#' && TopicRegistry.isValidTopic(target.substring(1), false))
+			{
+				String topic = target.substring(1);
+				for(ClientSession session : topics.getSubscribers(topic))
+				{
+					addDelivery(deliveries, session, "("+topic+") "+sender+": "+message);
+				}
+			}
+			else invalid++;
+		}
+
+		for(Map.Entry<ClientSession, ArrayList<String>> delivery : deliveries.entrySet())
+		{
+			delivery.getKey().writeToClient(delivery.getValue());
+		}
+
+		log.info(sender+" sent a batch of "+batch.size()+" messages to "+deliveries.size()+" clients.");
+		String result = "Your batch of "+batch.size()+" messages was sent to "+deliveries.size()+" clients.";
+		if(unknownRecievers > 0) result += " "+unknownRecievers+" whispers were to people not in the server.";
+		if(blocked > 0) result += " "+blocked+" messages were blocked by the filter.";
+		if(invalid > 0) result += " "+invalid+" lines were not in the form * (message), @(name) (message) or #(topic) (message).";
+		return result;
+	}
+
+	/**Adds a message to the list of messages for a recipient of a batch
+	 * @param deliveries The messages for each recipient
+	 * @param session The recipient
+	 * @param message The message to add*/
+	private static void addDelivery(IdentityHashMap<ClientSession, ArrayList<String>> deliveries, ClientSession session, String message)
+	{
+		ArrayList<String> messages = deliveries.get(session);
+		if(messages == null)
+		{
+			messages = new ArrayList<String>();
+			deliveries.put(session, messages);
 		}
+		messages.add(message);
+	}
 
+	/**Removes outboxes from {@link Server#detachedOutboxes} that have been kept for longer than {@link Server#resumeTimeout}.
+	 * <br> Must be called while synchronized on clientSessions.*/
+	private void removeExpiredOutboxes()
+	{
+		Iterator<Outbox> iterator = detachedOutboxes.values().iterator();
+		while(iterator.hasNext())
+		{
+			if(iterator.next().isExpired(resumeTimeout)) iterator.remove();
+		}
 	}
 
 	/**Returns the time since the server was set up in seconds
@@ -356,82 +1056,239 @@ public class Server
 	}
 
 	/**Returns a message telling the user what the server address is, or a message telling the user
-	 * that address cannot be recieved if there is an error
+	 * that address cannot be recieved if there is an error. The address is only looked up once by {@link Server#findServerAddress()}.
 	 * @return String - Message informing the user of the IP address*/
 	private String getServerAddress()
 	{
-		String output = "The server address could not be retreived";
-		try {output = "The server is at: "+InetAddress.getLocalHost();}
-		catch(IOException e) {System.err.println("Problem getting the IP address."); e.printStackTrace();}
-		return output;
+		return serverAddress;
 	}
 
 	/**Returns a message telling the user how many clients are in the server.
 	 * @return String - Message informing the user of the ammount of clients in the server*/
 	private String getNumberOfClients()
+	{
+		return "There are "+getClientCount()+" clients in the server.";
+	}
+
+	/**Returns the number of clients in the server
+	 * @return int - The size of clientSessions*/
+	int getClientCount()
 	{
 		synchronized(clientSessions)
 		{
-			return "There are "+clientSessions.size()+" clients in the server.";
+			return clientSessions.size();
 		}
 	}
 	
-	/**This method runs unitl the server shuts down. It waits for clients to attempt to connect at the
-	 * serverSocket then creates a socket by accepting the request, it then creates a clientSession 
-	 * using the socket and starts the client session thread using {@link ClientSession#start()} 
-	 * (which calls {@link ClientSession#run()}), and finally adds the clientSession to {@link Server#clientSessions}.*/
-	private void createSessionsOnRequest()
+	/**This method runs unitl the server shuts down or drains, accepting clients using {@link Server#acceptClients(ServerSocket)}.
+	 * <br> If the server is started with --acceptors=(number), that many threads accept clients at the same time so that lots of 
+	 * clients connecting at once are not held up by one thread. If the port is also opened with SO_REUSEPORT, each thread 
+	 * gets its own server socket on the port and the operating system shares the connections between them, otherwise 
+	 * the threads share {@link Server#ss}.
+	 * @throws IOException Caused by the extra server sockets being unable to open*/
+	private void createSessionsOnRequest() throws IOException
+	{
+		boolean reusingPort = isReusingPort();
+		for(int x = 1; x < acceptors; x++)
+		{
+			final ServerSocket serverSocket = reusingPort ? openServerSocket(ss.getLocalPort()) : ss;
+			if(reusingPort) extraServerSockets.add(serverSocket);
+
+			Thread acceptorThread = new Thread()
+			{
+				public void run()
+				{
+					acceptClients(serverSocket);
+				}
+			};
+			acceptorThread.start();
+		}
+		acceptClients(ss);
+	}
+
+	/**Waits for clients to attempt to connect at the serverSocket then creates a socket by accepting the request, 
+	 * it then creates a clientSession using the socket, adds it to {@link Server#clientSessions} and starts the client 
+	 * session thread using {@link ClientSession#start()} (which calls {@link ClientSession#run()}).
+	 * <br> The session is added before it is started, so that it cannot close before it has been added and be left in clientSessions.
+	 * @param serverSocket The server socket to accept clients from*/
+	private void acceptClients(ServerSocket serverSocket)
 	{
 		Socket socket;
 		while(true)
 		{
 			try
 			{
-				socket = ss.accept();
+				socket = serverSocket.accept();
 			}
 			catch(IOException e)
 			{
+				if(serverSocket.isClosed()) return; //The server is draining so stop accepting clients
 				continue; //Continue running the loop to create sessions if a client fails to connect
 			}
-			ClientSession session = new ClientSession(socket);
-			session.start();
-			synchronized(clientSessions)
+			addClient(socket);
+		}
+		
+	}
+
+	/**Creates and starts a session for a client that has connected. The session is added to {@link Server#clientSessions}
+	 * before it starts so it is always counted, even before the client has chosen a name.
+	 * <br> Also used by SimulationHarness to connect clients that use in-memory sockets instead of the network.
+	 * @param socket The client's socket*/
+	void addClient(Socket socket)
+	{
+		ClientSession session = new ClientSession(socket);
+		synchronized(clientSessions)
+		{
+			clientSessions.add(session);
+		}
+		session.start();
+	}
+
+	/**Returns the names of the clients that have chosen a name, used to check the server is working properly
+	 * @return ArrayList - The names, including any name more than once if two clients have it*/
+	ArrayList<String> getClientNames()
+	{
+		ArrayList<String> names = new ArrayList<String>();
+		synchronized(clientSessions)
+		{
+			for(ClientSession session : clientSessions)
 			{
-				clientSessions.add(session);
+				if(session.getClientName() != null) names.add(session.getClientName());
 			}
-			
 		}
-		
+		return names;
 	}
 	
+	/**Shuts down the server without dropping messages. The serverSocket is closed so no more clients can connect (if the 
+	 * server was started with --reusePort=true a new server can already be listening on the port), then every client is told 
+	 * to reconnect. The server waits until sequenced clients have acknowledged every message sent to them before the drain 
+	 * started (messages sent while draining are not waited for, so clients that keep chatting cannot stop the drain finishing), 
+	 * or the timeout passes, before closing every session and closing the program.
+	 * @param timeout The most time (in milliseconds) to wait for messages to be acknowledged
+	 * @param output Where the progress of the drain is written to*/
+	private void drain(long timeout, AdminOutput output)
+	{
+		//Setting draining in one step so two admins sending /drain at once cannot both start draining
+		if( !draining.compareAndSet(false, true) )
+		{
+			output.error("The server is already draining.");
+			return;
+		}
+		try
+		{
+			ss.close();
+			for(ServerSocket serverSocket : extraServerSockets)
+			{
+				serverSocket.close();
+			}
+		}
+		catch(IOException e)
+		{
+			log.error("Problem closing the server socket.", e);
+		}
+		output.reply("The server is no longer accepting clients and is draining.");
+
+		broadcast("The server is restarting, you will be reconnected shortly.");
+		ClientSession[] sessions;
+		synchronized(clientSessions)
+		{
+			sessions = clientSessions.toArray(new ClientSession[clientSessions.size()]);
+		}
+		long[] lastSequences = new long[sessions.length];
+		for(int x = 0; x < sessions.length; x++)
+		{
+			sessions[x].sendReconnectHint();
+			lastSequences[x] = sessions[x].getLastSequence();
+		}
+
+		//Waiting for the clients to acknowledge every message they had been sent when the drain started
+		long deadline = System.currentTimeMillis() + timeout;
+		int waitingFor = countUnacknowledged(sessions, lastSequences);
+		while(waitingFor > 0 && System.currentTimeMillis() < deadline)
+		{
+			try {Thread.sleep(100);}
+			catch(InterruptedException e) {break;}
+			waitingFor = countUnacknowledged(sessions, lastSequences);
+		}
+
+		for(ClientSession session : sessions)
+		{
+			try
+			{
+				session.forceSocketClose();
+			}
+			catch(IOException e) {} //The socket will be closed when the program closes anyway
+		}
+		if(waitingFor > 0) log.warn(waitingFor+" clients had not acknowledged all of their messages when the server drained.");
+		output.reply("The server has drained. "+waitingFor+" clients had not acknowledged all of their messages.", "unacknowledgedClients", waitingFor);
+		System.exit(0);
+	}
+
+	/**Returns the number of sessions that have sent sequenced messages which have not been acknowledged yet
+	 * @param sessions The sessions to check
+	 * @param lastSequences The sequence number of the last message each session must have acknowledged
+	 * @return int - The number of sessions still waiting for acknowledgements*/
+	private int countUnacknowledged(ClientSession[] sessions, long[] lastSequences)
+	{
+		int waiting = 0;
+		for(int x = 0; x < sessions.length; x++)
+		{
+			if(sessions[x].hasUnacknowledgedMessages(lastSequences[x])) waiting++;
+		}
+		return waiting;
+	}
+
 	/**Closes the serverSocket then closes the program */
 	private void shutdown()
+	{
+		shutdown(0);
+	}
+
+	/**Closes the serverSocket (if it was opened) then closes the program
+	 * @param status The exit status of the program, not 0 if the server failed*/
+	private void shutdown(int status)
 	{
 		try 
 		{ 
-			ss.close(); 
+			if(ss != null) ss.close(); 
 			System.out.println( "The server has shut down." );	
-			System.exit(0); //Close the program
 		} 
 		catch (Exception e) 
 		{
 			System.err.println("Problem shutting down the server."); e.printStackTrace();
-			System.exit(0);
 		}
+		System.exit(status); //Close the program
 	}
 	
-	/**Outputs the message to every client connected to the server (and the admin) using {@link ClientSession#writeToClient(String)} 
+	/**Outputs the message to every client connected to the server (and the admin) using {@link ClientSession#writeToClient(String)}.
+	 * <br> The admin sees the message through {@link ServerLog#chat(String)}, so it may be sampled if there are lots of messages.
 	 * @param message The string to be outputted to ever client (and admin)*/
 	private void broadcast(String message)
 	{
-		System.out.println(message); //Writing to server
+		broadcast(message, null);
+	}
+
+	/**Outputs the message to every client connected to the server (and the admin). If the message is being traced, 
+	 * the time it took to reach each stage is recorded and clients that asked for them get the times with the message.
+	 * @param message The string to be outputted to ever client (and admin)
+	 * @param trace The times of the traced message, or null if it is not traced*/
+	private void broadcast(String message, MessageTrace trace)
+	{
+		if(trace != null)
+		{
+			trace.dispatchTime = LatencyHistogram.currentMicros();
+			readToDispatch.record(trace.dispatchTime - trace.readTime);
+		}
+
+		log.chat(message); //Writing to server
 			
 		synchronized(clientSessions)
 		{
 			//Writing to every client by looping through every clientSession
 			for(ClientSession session : clientSessions)
 			{
-				session.writeToClient(message);
+				if(trace == null) session.writeToClient(message);
+				else session.writeTracedToClient(message, trace);
 			}
 		}
 
@@ -452,11 +1309,27 @@ public class Server
 		/**Used to read input from the client */
 		private BufferedReader textIn;
 
-		/**Used to write to the client */
-		private PrintWriter textOut;
+		/**Used to write to the client. This is null until the session thread has created its IO streams.*/
+		private volatile PrintWriter textOut;
 
 		/**The time the clientSession was created */
 		private long clientStartTime;
+
+		/**Numbers and keeps the messages written to the client until they are acknowledged. 
+		 * This is null unless the client asks for sequenced messages by sending /sequenced.*/
+		private volatile Outbox outbox;
+
+		/**The key the client sent with /mailbox (key) to prove stored whispers are for it, or null if it did not send one */
+		private volatile String mailboxKey;
+
+		/**Becomes true if the admin kicks the client, so the session cannot be resumed */
+		private volatile boolean kicked;
+
+		/**Whether the admin has allowed this client to send batches of messages with /batch */
+		private volatile boolean trusted;
+
+		/**Whether the client sent /traced to recieve the times traced messages reached the server with them */
+		private volatile boolean traced;
 	
 		/**Initialises {@link ClientSession#socket} with the socket passed as a parameter
 		 * @param socket Socket to be used to create IO streams between the session and the session*/
@@ -478,7 +1351,7 @@ public class Server
 			}
 			catch(Exception e)
 			{
-				System.err.println("A client has lost connection to the server. Closing the session...");
+				log.info("A client has lost connection to the server. Closing the session...");
 			}
 			finally
 			{
@@ -494,7 +1367,7 @@ public class Server
 		{
 			textIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 			textOut = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()));
-			System.out.println("A client has connected to the server.");
+			log.info("A client has connected to the server.");
 			writeToClient("You have connected to the server.");
 
 			clientStartTime = System.currentTimeMillis();
@@ -503,19 +1376,44 @@ public class Server
 
 		/**Keeps requesting the client inputs a username until {@link ClientSession#clientName} is assigned a valid name
 		 * that is not equal to any clientNames in {@link Server#clientSessions}
+		 * <br> Before choosing a name, the client can send /sequenced to recieve sequenced messages, or /resume (token) (sequence)
+		 * to take back a session it lost connection to using {@link ClientSession#resumeSession(String)}.
 		 * @throws Exception Caused by IOExceptions or NullPointer exceptions due to disconnects*/
 		private void getInputForClientName() throws Exception
 		{
 			String chosenName = null;
+			boolean askForName = true; //false after protocol commands so the client is not asked twice
 
 			while(clientName == null)
 			{
-				writeToClient("Please input a username:");
-				chosenName = textIn.readLine().trim(); //gets name from client
+				if(askForName) writeToClient("Please input a username:");
+				askForName = true;
+				chosenName = textIn.readLine(); //gets name from client
 
 				//To make sure the client session is closed if the socket cannot be read from
 				//(On some systems an exception wasnt always thrown if the connecting program shut down, this makes sure this happens)
 				if(chosenName == null) throw new IOException(); 
+				chosenName = chosenName.trim();
+
+				//Clients that trace messages cannot tell their name apart from a message, so the trace is removed
+				if(chosenName.startsWith("/trace "))
+				{
+					MessageTrace trace = MessageTrace.read(chosenName);
+					if(trace != null) chosenName = trace.text.trim();
+				}
+
+				if( handleProtocolLine(chosenName) )
+				{
+					askForName = false;
+					continue;
+				}
+				else if( chosenName.startsWith("/resume") )
+				{
+					if( resumeSession(chosenName) ) return;
+					writeControlLine("/resumeFailed");
+					askForName = false;
+					continue;
+				}
 
 				//checking the name is valid
 				if( chosenName.equals("") ) 
@@ -534,7 +1432,8 @@ public class Server
 					continue;
 				}
 
-				//Compares the chosenName with the current clientNames in the server
+				//Compares the chosenName with the current clientNames in the server. The name is taken while clientSessions 
+				//is still locked, otherwise two clients choosing the same name at the same time could both get it.
 				boolean alreadyTaken = false;
 				synchronized(clientSessions)
 				{
@@ -543,7 +1442,7 @@ public class Server
 						if(session.getClientName() == null) {} //Do nothing (move onto next x)
 						else if(session.getClientName().equals(chosenName)) alreadyTaken = true;
 					}
-
+					if(!alreadyTaken) clientName = chosenName;
 				}
 
 				if(alreadyTaken)
@@ -552,15 +1451,117 @@ public class Server
 				}
 				else
 				{
-					clientName = chosenName;
+					if(outbox != null) writeControlLine("/session "+outbox.getToken());
 					broadcast(clientName + " has joined the server.");
 					writeToClient("Welcome to the server. You can type /help for a list of commands.");
+					deliverStoredWhispers(true);
 				}
 
 			}
 			
 		}
 
+		/**Remembers the client's name in the {@link Server#mailbox} so whispers can be stored for them when they leave,
+		 * then sends them every whisper that was stored while they were away in one batch.
+		 * <br> Only done if the client sent a mailbox key and the name belongs to that key, see {@link Mailbox}.
+		 * @param joining true when the client has just joined, so it is told if the name's whispers belong to somebody else*/
+		private void deliverStoredWhispers(boolean joining)
+		{
+			String key = mailboxKey;
+			if(mailbox == null || key == null) return;
+			try
+			{
+				ArrayList<String> whispers = mailbox.collect(clientName, key);
+				if(whispers == null)
+				{
+					if(joining) writeToClient("Whispers stored for "+clientName+" belong to another client, so they have not been given to you.");
+					return;
+				}
+				if(whispers.isEmpty()) return;
+				whispers.add(0, "While you were away you were sent "+whispers.size()+" whispers:");
+				writeToClient(whispers);
+			}
+			catch(IOException e)
+			{
+				log.error("The stored whispers for "+clientName+" could not be read.", e);
+			}
+		}
+
+		/**Handles the lines clients send to control how messages are sent to them rather than as commands from the user.
+		 * <br> /sequenced turns on sequenced messages using an {@link Outbox}, and /ack (sequence) acknowledges 
+		 * every message up to and including that sequence number. /mailbox (key) gives the key that proves whispers 
+		 * stored in the {@link Server#mailbox} are for this client.
+		 * @param line The line recieved from the client
+		 * @return boolean - true if the line was a protocol line and should not be processed any further*/
+		private boolean handleProtocolLine(String line)
+		{
+			if(line.startsWith("/ack "))
+			{
+				try
+				{
+					if(outbox != null) outbox.acknowledge( Long.parseLong(line.substring(5).trim()) );
+				}
+				catch(NumberFormatException e) {} //Ignore acknowledgements that are not numbers
+				return true;
+			}
+			else if(line.equals("/sequenced"))
+			{
+				if(outbox == null)
+				{
+					outbox = new Outbox();
+					//The token is normally sent when the name is chosen, so it is sent now if that has already happened
+					if(clientName != null) writeControlLine("/session "+outbox.getToken());
+				}
+				return true;
+			}
+			else if(line.equals("/traced"))
+			{
+				traced = true;
+				return true;
+			}
+			else if(line.startsWith("/mailbox "))
+			{
+				mailboxKey = line.substring(9).trim();
+				return true;
+			}
+			return false;
+		}
+
+		/**Processes a /resume (token) (sequence) command by taking the {@link Outbox} the token refers to from 
+		 * {@link Server#detachedOutboxes} and sending the messages after the sequence number again.
+		 * @param line The full resume command sent by the client
+		 * @return boolean - true if the session was resumed and the client does not need to choose a name*/
+		private boolean resumeSession(String line)
+		{
+			String[] parts = line.split(" ");
+			if(parts.length != 3) return false;
+			long lastSequence;
+			try {lastSequence = Long.parseLong(parts[2]);}
+			catch(NumberFormatException e) {return false;}
+
+			Outbox resumed;
+			synchronized(clientSessions)
+			{
+				resumed = detachedOutboxes.remove(parts[1]);
+				if(resumed == null || resumed.isExpired(resumeTimeout)) return false;
+				for(ClientSession session : clientSessions)
+				{
+					//Somebody else has taken the name since the client lost connection
+					if(resumed.getClientName().equals(session.getClientName())) return false;
+				}
+				clientName = resumed.getClientName();
+				outbox = resumed;
+			}
+
+			//Sending the messages again after unlocking clientSessions so other clients do not wait for them to be written.
+			//Messages sent to the client before this are kept by the outbox without being written, since it is still detached.
+			resumed.resend(textOut, lastSequence, "/session "+resumed.getToken());
+
+			broadcast(clientName + " has reconnected to the server.");
+			deliverStoredWhispers(true);
+			return true;
+		}
+
 		/**Gets input from the client and performs the corresponding action
 		  * <br> Calls a multitude of different methods depending on the admin's input, will process the 
 		  * command if it begins with / or {@link Server#broadcast(String)} the input if it doesn't.
@@ -576,6 +1577,19 @@ public class Server
 				//(On some systems an exception wasnt always thrown if the connecting program shut down, this makes sure this happens)
 				if(line == null) throw new IOException();
 
+				MessageTrace trace = null;
+				if(line.startsWith("/trace "))
+				{
+					trace = MessageTrace.read(line);
+					if(trace != null)
+					{
+						clientToServer.record(trace.readTime - trace.sendTime);
+						line = trace.text;
+					}
+				}
+
+				if( handleProtocolLine(line) ) continue;
+
 				if(!line.equals("")) //will not process the input if the input is empty
 				{
 					if(line.charAt(0) == '/' )
@@ -604,6 +1618,26 @@ public class Server
 						{
 							writeToClient( getNumberOfClients() );
 						}
+						else if(line.startsWith("/subscribe"))
+						{
+							processSubscribeClientCommand(line);
+						}
+						else if(line.startsWith("/unsubscribe"))
+						{
+							processUnsubscribeClientCommand(line);
+						}
+						else if(line.startsWith("/publish"))
+						{
+							processPublishClientCommand(line);
+						}
+						else if(line.equals("/topics"))
+						{
+							writeToClient( getSubscriptionList() );
+						}
+						else if(line.startsWith("/batch"))
+						{
+							processBatchClientCommand(line);
+						}
 						else if(line.equals("/quit"))
 						{
 							return;
@@ -613,7 +1647,11 @@ public class Server
 							writeToClient("That is not a valid command, type /help for a list of commands.");
 						}
 					}
-					else broadcast("["+clientName+"]: " + line);
+					else
+					{
+						String message = filterMessage(line);
+						if(message != null) broadcast("["+clientName+"]: " + message, trace);
+					}
 				}
 				
 			} //end of while loop
@@ -629,6 +1667,12 @@ public class Server
 							"/connectedTime - get how long you have been connected for \n" +
 							"/IP - get the servers IP address \n" +
 							"/clients - get the number of clients in the server \n" +
+							"/subscribe (topic) - recieve messages published to a topic, * matches one word and # matches the rest \n" +
+							"/unsubscribe (topic) - stop recieving messages published to a topic \n" +
+							"/publish (topic) (message) - send a message to everyone subscribed to a topic \n" +
+							"/topics - get the list of topics you are subscribed to \n" +
+							"/batch (count) - send the next (count) lines as one batch, if the admin has trusted you. Each line is \n" +
+							"    * (message) to send to everyone, @(name) (message) to whisper or #(topic) (message) to publish \n" +
 							"/quit - leave the server");
 		}
 
@@ -651,7 +1695,8 @@ public class Server
 						message = message.concat(" "+parts[x]);
 					}
 				}
-				whisper("["+clientName+"]", reciever, message);
+				message = filterMessage(message);
+				if(message != null) whisper("["+clientName+"]", reciever, message);
 			}
 			//Catching out of bounds and conversion exceptions
 			catch(Exception e) 
@@ -660,64 +1705,2168 @@ public class Server
 			}
 		}
 
-		/**Sends a message to the client using the output stream {@link ClientSession#textOut} 
-		 * @param message The string to print to the client*/
-		public void writeToClient(String message)
+		/**processes the command string to get the topic and calls {@link TopicRegistry#subscribe(String,ClientSession)}
+		 * @param line The full command inputted by the client*/
+		private void processSubscribeClientCommand(String line)
 		{
-			textOut.println(message); 
-			textOut.flush();
+			String[] parts = line.trim().split(" ");
+			if(parts.length != 2)
+			{
+				writeToClient("The format is incorrect. Please make sure your command is in the form /subscribe (topic)");
+			}
+			else if( !TopicRegistry.isValidTopic(parts[1], true) )
+			{
+				writeToClient("\""+parts[1]+"\" is not a valid topic. Topics are words separated by dots, e.g. news.* or news.#");
+			}
+			else
+			{
+				SubscribeResult result = topics.subscribe(parts[1], this);
+				if(result == SubscribeResult.SUBSCRIBED) writeToClient("You are now subscribed to "+parts[1]+".");
+				else if(result == SubscribeResult.ALREADY_SUBSCRIBED) writeToClient("You are already subscribed to "+parts[1]+".");
+				else if(result == SubscribeResult.TOO_MANY_SUBSCRIPTIONS) writeToClient("You are subscribed to too many topics, unsubscribe from one first.");
+				else writeToClient("There are too many topics on the server, please subscribe to an existing topic.");
+			}
 		}
 
-		/**Returns the name of the client
-		 * @return String - The name of the client linked to this clientSession*/
-		public String getClientName()
+		/**processes the command string to get the topic and calls {@link TopicRegistry#unsubscribe(String,ClientSession)}
+		 * @param line The full command inputted by the client*/
+		private void processUnsubscribeClientCommand(String line)
 		{
-			return clientName;
+			String[] parts = line.trim().split(" ");
+			if(parts.length != 2)
+			{
+				writeToClient("The format is incorrect. Please make sure your command is in the form /unsubscribe (topic)");
+			}
+			else if( topics.unsubscribe(parts[1], this) )
+			{
+				writeToClient("You are no longer subscribed to "+parts[1]+".");
+			}
+			else writeToClient("You are not subscribed to "+parts[1]+".");
 		}
 
-		/**Returns the time the client has ben connected to the server for in seconds 
-		 * @return long - The time the client has been connected for in seconds*/
-		public long getClientRunTime()
+		/**processes the command string to get the topic and message strings, then calls 
+		 * {@link Server#publish(String,String,String)} using the client's name.
+		 * @param line The full command inputted by the client*/
+		private void processPublishClientCommand(String line)
 		{
-			return ( System.currentTimeMillis() - clientStartTime ) / 1000;
+			String[] parts = line.trim().split(" ", 3); //splits the command into the command, topic and message
+			if(parts.length < 3)
+			{
+				writeToClient("The format is incorrect. Please make sure your command is in the form /publish (topic) (message)");
+				return;
+			}
+			String message = filterMessage(parts[2]);
+			if(message != null) writeToClient( publish("["+clientName+"]", parts[1], message) );
 		}
 
-		/**Forces the socket for this client session to close, to be used if you want to force the client to disconnect
-		 * @throws IOException Caused by the socket being unable to close*/
-		public void forceSocketClose() throws IOException
+		/**Passes a message from the client through the {@link Server#pipeline}, and tells the client if it was blocked
+		 * @param message The message the client wants to send
+		 * @return String - The message to send, or null if it was blocked*/
+		private String filterMessage(String message)
 		{
-			socket.close();
+			String filtered = pipeline.process(clientName, message);
+			if(filtered == null) writeToClient("Your message was not sent because it contains words or links that are not allowed.");
+			return filtered;
 		}
-		
-		/**CLoses the socket for the session if its not closed already and removes the session from {@link Server#clientSessions}*/
-		public void closeSession() 
+
+		/**processes a /batch (count) command by reading the next (count) lines from the client and sending them all
+		 * using {@link Server#sendBatch(String,ArrayList)}. Only clients the admin has trusted can send batches, but the lines
+		 * of a refused batch are still read so they are not treated as chat.
+		 * @param line The full command inputted by the client
+		 * @throws IOException Caused by the client disconnecting part way through the batch, or by the batch being too big to read*/
+		private void processBatchClientCommand(String line) throws IOException
 		{
-			if(clientName == null)
+			int count;
+			try
+			{
+				count = Integer.parseInt(line.substring(6).trim());
+			}
+			catch(NumberFormatException e)
+			{
+				writeToClient("The format is incorrect. Please make sure your command is in the form /batch (count)");
+				return;
+			}
+			if(count < 1)
+			{
+				writeToClient("A batch must have between 1 and "+maxBatchSize+" messages.");
+				return;
+			}
+			if(count > maxBatchSize)
+			{
+				//The lines of the batch cannot be skipped without reading them all, and they must not be sent as chat
+				writeToClient("A batch must have between 1 and "+maxBatchSize+" messages. You have been disconnected.");
+				throw new IOException("The batch was too big to skip");
+			}
+
+			//Reading every line of the batch before checking the client is trusted, otherwise whispers 
+			//in the batch would be read as chat and sent to everyone
+			ArrayList<String> batch = new ArrayList<String>(count);
+			for(int x = 0; x < count; x++)
+			{
+				String message = textIn.readLine();
+				if(message == null) throw new IOException();
+				batch.add(message);
+			}
+			if(!trusted)
+			{
+				writeToClient("You need to be trusted by the admin to send batches. Your batch was not sent.");
+				return;
+			}
+			writeToClient( sendBatch(clientName, batch) );
+		}
+
+		/**Allows or stops the client sending batches of messages with /batch
+		 * @param trusted true to allow batches*/
+		public void setTrusted(boolean trusted)
+		{
+			this.trusted = trusted;
+		}
+
+		/**Returns a message listing the topics this client is subscribed to
+		 * @return String - Message informing the client of their subscriptions*/
+		private String getSubscriptionList()
+		{
+			ArrayList<String> subscriptions = topics.getSubscriptions(this);
+			if(subscriptions.isEmpty()) return "You are not subscribed to any topics.";
+			return "You are subscribed to: "+String.join(", ", subscriptions);
+		}
+
+		/**Sends a message to the client using the output stream {@link ClientSession#textOut} 
+		 * @param message The string to print to the client*/
+		public void writeToClient(String message)
+		{
+			writeToClient(message, null);
+		}
+
+		/**Sends a message to the client using the output stream {@link ClientSession#textOut}. If the client uses
+		 * sequenced messages, the message is numbered and kept by the {@link ClientSession#outbox} until it is acknowledged.
+		 * @param message The string to print to the client
+		 * @param onAcknowledged Run when the client acknowledges the message, or null. Never run if the client does not use sequenced messages.*/
+		public void writeToClient(String message, Runnable onAcknowledged)
+		{
+			if(textOut == null) return; //The session has been added to clientSessions but has not started yet
+			Outbox sequencer = outbox;
+			if(sequencer != null)
 			{
-				System.out.println("A client has disconnected from the server before entering their username.");
+				if( sequencer.send(textOut, message, onAcknowledged) ) disconnectOverflowed();
 			}
 			else
 			{
-				broadcast(clientName+" has left the server.");
+				synchronized(textOut)
+				{
+					textOut.println(message); 
+					textOut.flush();
+				}
 			}
-			
+		}
+
+		/**Sends a traced message to the client, recording how long it waited to be sent and how long writing it took.
+		 * If the client sent /traced, the message is sent as /traced (client send time) (server read time) (time sent) (message)
+		 * so the client can work out the rest of the message's journey.
+		 * @param message The string to print to the client
+		 * @param trace The times of the message*/
+		public void writeTracedToClient(String message, MessageTrace trace)
+		{
+			long enqueueTime = LatencyHistogram.currentMicros();
+			dispatchToEnqueue.record(enqueueTime - trace.dispatchTime);
+			if(traced) writeToClient("/traced "+trace.sendTime+" "+trace.readTime+" "+enqueueTime+" "+message);
+			else writeToClient(message);
+			enqueueToWrite.record(LatencyHistogram.currentMicros() - enqueueTime);
+		}
+
+		/**Sends several messages to the client, only flushing the output stream after the last one. If the client
+		 * uses sequenced messages, each message gets its own sequence number.
+		 * @param messages The strings to print to the client, in order*/
+		public void writeToClient(ArrayList<String> messages)
+		{
+			if(textOut == null) return; //The session has been added to clientSessions but has not started yet
+			Outbox sequencer = outbox;
+			if(sequencer != null)
+			{
+				if( sequencer.send(textOut, messages) ) disconnectOverflowed();
+			}
+			else
+			{
+				//Locking the output stream so another thread's message cannot be written in the middle
+				synchronized(textOut)
+				{
+					for(String message : messages)
+					{
+						textOut.println(message);
+					}
+					textOut.flush();
+				}
+			}
+		}
+
+		/**Disconnects the client because its {@link ClientSession#outbox} has too many unacknowledged messages. 
+		 * The session cannot be resumed, since the messages after the outbox filled up were never sent.*/
+		private void disconnectOverflowed()
+		{
+			overflowedSessions.incrementAndGet();
+			log.warn(clientName+" was disconnected because it did not acknowledge "+Outbox.MAX_UNACKNOWLEDGED+" messages.");
+			writeControlLine("You have been disconnected because your client stopped acknowledging messages.");
+			try
+			{
+				forceSocketClose();
+			}
+			catch(IOException e)
+			{
+				log.error("The socket could not be closed so the client cannot be disconnected", e);
+			}
+		}
+
+		/**Sends a line to the client without a sequence number, used for protocol lines such as /session (token)
+		 * @param line The line to send*/
+		private void writeControlLine(String line)
+		{
+			Outbox sequencer = outbox;
+			if(sequencer != null)
+			{
+				//Locking the outbox so the line is not written in the middle of a sequenced message
+				synchronized(sequencer)
+				{
+					textOut.println(line);
+					textOut.flush();
+				}
+			}
+			else
+			{
+				textOut.println(line);
+				textOut.flush();
+			}
+		}
+
+		/**Tells the client to reconnect to the server (which will be a new server if this one is draining) at a random 
+		 * time within {@link Server#RECONNECT_WINDOW}. Only sent to clients using sequenced messages, since other 
+		 * clients would not understand it.*/
+		public void sendReconnectHint()
+		{
+			if(outbox != null) writeControlLine("/reconnect "+RECONNECT_WINDOW);
+		}
+
+		/**Returns the sequence number of the last message sent to the client, or 0 if the client does not use sequenced messages */
+		public long getLastSequence()
+		{
+			Outbox sequencer = outbox;
+			return (sequencer == null) ? 0 : sequencer.getLastSequence();
+		}
+
+		/**Returns true if the client uses sequenced messages and has not acknowledged every message up to the sequence number yet
+		 * @param sequence The sequence number of the last message that must be acknowledged*/
+		public boolean hasUnacknowledgedMessages(long sequence)
+		{
+			Outbox sequencer = outbox;
+			return sequencer != null && sequencer.hasUnacknowledged(sequence);
+		}
+
+		/**Returns the name of the client
+		 * @return String - The name of the client linked to this clientSession*/
+		public String getClientName()
+		{
+			return clientName;
+		}
+
+		/**Returns the time the client has ben connected to the server for in seconds 
+		 * @return long - The time the client has been connected for in seconds*/
+		public long getClientRunTime()
+		{
+			return ( System.currentTimeMillis() - clientStartTime ) / 1000;
+		}
+
+		/**Forces the socket for this client session to close, to be used if you want to force the client to disconnect
+		 * @throws IOException Caused by the socket being unable to close*/
+		public void forceSocketClose() throws IOException
+		{
+			kicked = true;
+			socket.close();
+		}
+		
+		/**CLoses the socket for the session if its not closed already and removes the session from {@link Server#clientSessions}.
+		 * <br> If the client uses sequenced messages and was not kicked or disconnected for having too many unacknowledged messages, 
+		 * its {@link Outbox} is kept in {@link Server#detachedOutboxes}.*/
+		public void closeSession() 
+		{
 			try 
 			{
 				if(!socket.isClosed()) socket.close();
 			}
 			catch(IOException e)
 			{
-				System.err.println("There was an exception when closing a socket for a clientSession."); e.printStackTrace();
+				log.error("There was an exception when closing a socket for a clientSession.", e);
 			}
 			finally
 			{
-				clientSessions.remove(this);
+				topics.unsubscribeAll(this);
+				synchronized(clientSessions)
+				{
+					clientSessions.remove(this);
+					//Keeping the unacknowledged messages so the client can resume the session if it reconnects
+					if(outbox != null && clientName != null && !kicked && !outbox.isOverflowed())
+					{
+						outbox.detach(clientName);
+						removeExpiredOutboxes();
+						detachedOutboxes.put(outbox.getToken(), outbox);
+					}
+				}
+			}
+
+			//Remembering when the client left, so its name is kept in the mailbox for mailbox.nameTtlDays from now
+			if(mailbox != null && clientName != null && mailboxKey != null) mailbox.leave(clientName, mailboxKey);
+
+			//Telling the other clients after removing the session so the message is not kept for this client to resume
+			if(clientName == null)
+			{
+				log.info("A client has disconnected from the server before entering their username.");
+			}
+			else
+			{
+				broadcast(clientName+" has left the server.");
 			}
 
 		}
 		
 	}
-	
+
+
+
+	/**The times (in microseconds since 1970, from {@link LatencyHistogram#currentMicros()}) a traced message reached each stage.
+	 * <br> Clients choose which messages to trace (such as 1 in every 100) and send them as /trace (send time) (message), 
+	 * so messages that are not traced cost nothing more than checking whether the line starts with /trace.*/
+	private static class MessageTrace
+	{
+		/**When the client sent the message, by the client's clock */
+		final long sendTime;
+
+		/**When the server read the message */
+		final long readTime;
+
+		/**When the message was given to {@link Server#broadcast(String,MessageTrace)} */
+		long dispatchTime;
+
+		/**The message without the trace */
+		final String text;
+
+		MessageTrace(long sendTime, long readTime, String text)
+		{
+			this.sendTime = sendTime;
+			this.readTime = readTime;
+			this.text = text;
+		}
+
+		/**Reads the trace from a line in the form /trace (send time) (message)
+		 * @param line The line from the client
+		 * @return MessageTrace - The trace, or null if the line is not in the right form*/
+		static MessageTrace read(String line)
+		{
+			long readTime = LatencyHistogram.currentMicros();
+			int space = line.indexOf(' ', 7);
+			if(space == -1) return null;
+			try
+			{
+				return new MessageTrace(Long.parseLong(line.substring(7, space)), readTime, line.substring(space + 1));
+			}
+			catch(NumberFormatException e)
+			{
+				return null;
+			}
+		}
+	}
+
+	/**The settings the server is started with. Each setting is looked up in the command line arguments (--(setting)=(value)), 
+	 * then the properties file given with --config=(file), then the system properties (-D(setting)=(value)), and the default 
+	 * is used if it is not in any of them. This lets the server be started by another program without anybody typing anything.*/
+	static class ServerConfig
+	{
+		/**Printed when the server is started with --help or with settings that are not valid */
+		static final String USAGE = 
+				"Usage: java Server [--(setting)=(value)...] \n" +
+				"--config=(file) - read settings from a properties file, command line settings are used first \n" +
+				"--port=(number) - the port clients connect to, asked for if not given \n" +
+				"--bindAddress=(address) - only accept clients on this address of the machine \n" +
+				"--adminPort=(number) - accept admin commands on this port from this machine \n" +
+				"--acceptors=(number) - the number of threads accepting clients \n" +
+				"--reusePort=true - open the port with SO_REUSEPORT so a new server can take over while this one drains \n" +
+				"--maxBatchSize=(number) - the most messages in one /batch \n" +
+				"--maxSubscriptions=(number), --maxTopics=(number) - the most topics one client can subscribe to and the most topics altogether \n" +
+				"--resumeTimeoutSeconds=(number) - how long a disconnected client can resume its session for \n" +
+				"--mailbox.dir=(directory) - store whispers to clients who are not in the server \n" +
+				"--mailbox.quota=(number), --mailbox.ttlHours=(number) - the most whispers stored for each client and how long they are kept \n" +
+				"--mailbox.nameTtlDays=(number) - how long a name is remembered for after the client was last in the server \n" +
+				"--log.level=(DEBUG, INFO, WARN or ERROR), --log.console=(true or false), --log.file=(file) - what is logged and where \n" +
+				"--log.maxBytes=(number), --log.maxFiles=(number) - when the log file is rotated and how many old files are kept \n" +
+				"--log.chatSampling=(number) - only log 1 in every (number) chat messages \n" +
+				"--filter.file=(file) - mask the words in the file (one per line) in messages, /reloadFilter reads the file again \n" +
+				"--filter.mode=(mask or block) - mask the words or block messages containing them \n" +
+				"--filter.blockLinks=true - block messages with links in";
+
+		/**Settings from the command line */
+		private final Properties arguments = new Properties();
+
+		/**Settings from the properties file */
+		private final Properties file = new Properties();
+
+		/**Reads the settings from the command line arguments, then the properties file if one is given
+		 * @param args The command line arguments
+		 * @throws IOException Caused by the properties file being unable to be read
+		 * @throws IllegalArgumentException If an argument is not in the form --(setting)=(value)*/
+		ServerConfig(String[] args) throws IOException
+		{
+			for(String arg : args)
+			{
+				if(!arg.startsWith("--")) throw new IllegalArgumentException("\""+arg+"\" is not in the form --(setting)=(value)");
+				int equals = arg.indexOf('=');
+				if(equals == -1) arguments.setProperty(arg.substring(2), "true"); //Settings without a value such as --help
+				else arguments.setProperty(arg.substring(2, equals), arg.substring(equals + 1));
+			}
+
+			String fileName = arguments.getProperty("config");
+			if(fileName != null)
+			{
+				Reader reader = new InputStreamReader(new FileInputStream(fileName), "UTF-8");
+				try {file.load(reader);}
+				finally {reader.close();}
+			}
+		}
+
+		/**Returns the value of a setting
+		 * @param name The name of the setting
+		 * @param defaultValue The value to use if the setting has not been given
+		 * @return String - The value of the setting*/
+		String getString(String name, String defaultValue)
+		{
+			String value = arguments.getProperty(name);
+			if(value == null) value = file.getProperty(name);
+			if(value == null) value = System.getProperty(name);
+			return (value == null) ? defaultValue : value.trim();
+		}
+
+		/**Returns the value of a setting that is a number
+		 * @throws IllegalArgumentException If the setting is not a number*/
+		int getInt(String name, int defaultValue)
+		{
+			return getInt(name, defaultValue, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		}
+
+		/**Returns the value of a setting that is a number between two numbers
+		 * @param name The name of the setting
+		 * @param defaultValue The value to use if the setting has not been given
+		 * @param minimum The smallest value the setting can be given
+		 * @param maximum The largest value the setting can be given
+		 * @throws IllegalArgumentException If the setting is not a number or is out of range*/
+		int getInt(String name, int defaultValue, int minimum, int maximum)
+		{
+			String value = getString(name, null);
+			if(value == null) return defaultValue;
+			int number;
+			try
+			{
+				number = Integer.parseInt(value);
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IllegalArgumentException("The setting "+name+" must be a whole number between "+minimum+" and "+maximum+", not \""+value+"\"");
+			}
+			if(number < minimum || number > maximum)
+			{
+				throw new IllegalArgumentException("The setting "+name+" must be between "+minimum+" and "+maximum+", not "+number);
+			}
+			return number;
+		}
+
+		/**Returns the value of a setting that is a number
+		 * @throws IllegalArgumentException If the setting is not a number*/
+		long getLong(String name, long defaultValue)
+		{
+			return getLong(name, defaultValue, Long.MIN_VALUE, Long.MAX_VALUE);
+		}
+
+		/**Returns the value of a setting that is a number between two numbers
+		 * @param name The name of the setting
+		 * @param defaultValue The value to use if the setting has not been given
+		 * @param minimum The smallest value the setting can be given
+		 * @param maximum The largest value the setting can be given
+		 * @throws IllegalArgumentException If the setting is not a number or is out of range*/
+		long getLong(String name, long defaultValue, long minimum, long maximum)
+		{
+			String value = getString(name, null);
+			if(value == null) return defaultValue;
+			long number;
+			try
+			{
+				number = Long.parseLong(value);
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IllegalArgumentException("The setting "+name+" must be a whole number between "+minimum+" and "+maximum+", not \""+value+"\"");
+			}
+			if(number < minimum || number > maximum)
+			{
+				throw new IllegalArgumentException("The setting "+name+" must be between "+minimum+" and "+maximum+", not "+number);
+			}
+			return number;
+		}
+
+		/**Returns the value of a setting that is true or false */
+		boolean getBoolean(String name, boolean defaultValue)
+		{
+			String value = getString(name, null);
+			return (value == null) ? defaultValue : value.equalsIgnoreCase("true");
+		}
+	}
+
+	/**Writes the server's log messages on a background thread so that clients never wait for the console or the log file.
+	 * <br> Messages are added to a ring buffer that holds {@link ServerLog#CAPACITY} messages. If it is full the message is dropped 
+	 * and counted rather than making the client wait. The writer thread takes every waiting message at once and writes them 
+	 * to the console and log file, only flushing once for each batch. The log file is rotated when it gets too big.
+	 * <br> The log is set up using the settings log.level (DEBUG, INFO, WARN or ERROR, INFO if not set), log.console 
+	 * (false to stop writing to the console), log.file (no file if not set), log.maxBytes and log.maxFiles (the size a log file 
+	 * is rotated at and the number of old files kept) and log.chatSampling (only log 1 in every n chat messages).*/
+	private static class ServerLog
+	{
+		/**How important a log message is. Messages below the level set by log.level are not logged. */
+		enum Level {DEBUG, INFO, WARN, ERROR}
+
+		/**The most messages that can wait to be written */
+		private static final int CAPACITY = 8192;
+
+		/**The ring buffer of messages waiting to be written. Messages are written from head onwards. */
+		private final long[] times = new long[CAPACITY];
+		private final Level[] levels = new Level[CAPACITY];
+		private final String[] messages = new String[CAPACITY];
+		private final Throwable[] exceptions = new Throwable[CAPACITY];
+
+		/**The position in the ring buffer of the oldest message waiting to be written */
+		private int head;
+
+		/**The number of messages waiting to be written */
+		private int size;
+
+		/**The number of messages dropped since the last batch because the ring buffer was full */
+		private long dropped;
+
+		/**Becomes true when the program is closing, so the writer thread finishes once the ring buffer is empty */
+		private boolean closed;
+
+		/**The lowest level of message that is logged */
+		private final Level minimumLevel;
+
+		/**Whether messages are written to the console */
+		private final boolean toConsole;
+
+		/**The log file, or null if messages are only written to the console */
+		private final File file;
+
+		/**The size (in bytes) the log file is rotated at */
+		private final long maxBytes;
+
+		/**The number of rotated log files kept (server.log.1 is the newest) */
+		private final int maxFiles;
+
+		/**Only 1 in every chatSampling chat messages is logged */
+		private final int chatSampling;
+
+		/**The number of chat messages given to {@link ServerLog#chat(String)}, used for sampling */
+		private final AtomicLong chatMessages = new AtomicLong();
+
+		/**Used by the writer thread to write to the log file */
+		private Writer fileOut;
+
+		/**The number of characters written to the current log file */
+		private long fileSize;
+
+		/**Used by the writer thread to add the time to each line of the log file */
+		private final DateTimeFormatter timeFormat = 
+				DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+		/**The background thread that writes the messages */
+		private final Thread writerThread;
+
+		/**Starts the writer thread and makes sure the waiting messages are written when the program closes
+		 * @param config The settings to read the log.* settings from*/
+		ServerLog(ServerConfig config)
+		{
+			String level = config.getString("log.level", "INFO");
+			try
+			{
+				minimumLevel = Level.valueOf(level.toUpperCase());
+			}
+			catch(IllegalArgumentException e)
+			{
+				throw new IllegalArgumentException("The setting log.level must be DEBUG, INFO, WARN or ERROR, not \""+level+"\"");
+			}
+			toConsole = config.getBoolean("log.console", true);
+			String fileName = config.getString("log.file", null);
+			file = (fileName == null) ? null : new File(fileName);
+			maxBytes = config.getLong("log.maxBytes", 10 * 1024 * 1024, 1024, Long.MAX_VALUE);
+			maxFiles = config.getInt("log.maxFiles", 5, 1, 1000);
+			chatSampling = config.getInt("log.chatSampling", 1, 1, Integer.MAX_VALUE);
+
+			writerThread = new Thread("Log writer")
+			{
+				public void run()
+				{
+					writeMessages();
+				}
+			};
+			writerThread.setDaemon(true);
+			writerThread.start();
+
+			Runtime.getRuntime().addShutdownHook(new Thread()
+			{
+				public void run()
+				{
+					close();
+				}
+			});
+		}
+
+		/**Logs a message used to find problems, not logged unless log.level is DEBUG */
+		public void debug(String message) {log(Level.DEBUG, message, null);}
+
+		/**Logs a message about something happening on the server */
+		public void info(String message) {log(Level.INFO, message, null);}
+
+		/**Logs a message about something that might be a problem */
+		public void warn(String message) {log(Level.WARN, message, null);}
+
+		/**Logs a problem along with the exception that caused it */
+		public void error(String message, Throwable exception) {log(Level.ERROR, message, exception);}
+
+		/**Logs a message sent to everyone, such as a chat message. Only 1 in every log.chatSampling of these are logged,
+		 * so busy servers can keep the log small.*/
+		public void chat(String message)
+		{
+			if(chatSampling == 1 || chatMessages.incrementAndGet() % chatSampling == 0) log(Level.INFO, message, null);
+		}
+
+		/**Returns true if messages at the level are logged, so callers can avoid building messages that would not be logged */
+		public boolean isEnabled(Level level)
+		{
+			return level.compareTo(minimumLevel) >= 0;
+		}
+
+		/**Adds a message to the ring buffer for the writer thread, or drops it if the ring buffer is full
+		 * @param level How important the message is
+		 * @param message The message to log
+		 * @param exception The exception that caused the message, or null*/
+		private void log(Level level, String message, Throwable exception)
+		{
+			if(!isEnabled(level)) return;
+			long time = System.currentTimeMillis();
+			synchronized(this)
+			{
+				if(size == CAPACITY)
+				{
+					dropped++;
+					return;
+				}
+				int tail = (head + size) % CAPACITY;
+				times[tail] = time;
+				levels[tail] = level;
+				messages[tail] = message;
+				exceptions[tail] = exception;
+				size++;
+				if(size == 1) notifyAll(); //The writer thread only waits when the ring buffer is empty
+			}
+		}
+
+		/**Run by the writer thread. Waits for messages, then takes every waiting message out of the ring buffer at 
+		 * once and writes them, until the log is closed.*/
+		private void writeMessages()
+		{
+			long[] batchTimes = new long[CAPACITY];
+			Level[] batchLevels = new Level[CAPACITY];
+			String[] batchMessages = new String[CAPACITY];
+			Throwable[] batchExceptions = new Throwable[CAPACITY];
+
+			while(true)
+			{
+				int count;
+				long droppedMessages;
+				boolean finished;
+				synchronized(this)
+				{
+					while(size == 0 && !closed)
+					{
+						try {wait();}
+						catch(InterruptedException e) {return;}
+					}
+					count = size;
+					for(int x = 0; x < count; x++)
+					{
+						int position = (head + x) % CAPACITY;
+						batchTimes[x] = times[position];
+						batchLevels[x] = levels[position];
+						batchMessages[x] = messages[position];
+						batchExceptions[x] = exceptions[position];
+						messages[position] = null;
+						exceptions[position] = null;
+					}
+					head = (head + count) % CAPACITY;
+					size = 0;
+					droppedMessages = dropped;
+					dropped = 0;
+					finished = closed;
+					notifyAll(); //Lets close() know the ring buffer has been emptied
+				}
+
+				writeBatch(batchTimes, batchLevels, batchMessages, batchExceptions, count, droppedMessages);
+				if(finished) return;
+			}
+		}
+
+		/**Writes a batch of messages to the console and the log file, flushing each once
+		 * @param count The number of messages in the arrays to write
+		 * @param droppedMessages The number of messages dropped before this batch*/
+		private void writeBatch(long[] batchTimes, Level[] batchLevels, String[] batchMessages, Throwable[] batchExceptions, int count, long droppedMessages)
+		{
+			StringBuilder console = new StringBuilder();
+			StringBuilder logFile = new StringBuilder();
+			if(droppedMessages > 0)
+			{
+				String warning = droppedMessages+" log messages were dropped because the server was logging too quickly.";
+				console.append(warning).append(System.lineSeparator());
+				logFile.append(timeFormat.format(Instant.now())).append(" WARN  ").append(warning).append(System.lineSeparator());
+			}
+
+			for(int x = 0; x < count; x++)
+			{
+				String exception = "";
+				if(batchExceptions[x] != null)
+				{
+					StringWriter trace = new StringWriter();
+					batchExceptions[x].printStackTrace(new PrintWriter(trace));
+					exception = trace.toString();
+				}
+				console.append(batchMessages[x]).append(System.lineSeparator()).append(exception);
+				logFile.append(timeFormat.format(Instant.ofEpochMilli(batchTimes[x]))).append(' ')
+						.append(String.format("%-5s", batchLevels[x])).append(' ')
+						.append(batchMessages[x]).append(System.lineSeparator()).append(exception);
+			}
+
+			if(toConsole)
+			{
+				System.out.print(console);
+				System.out.flush();
+			}
+			if(file != null)
+			{
+				try
+				{
+					if(fileOut == null || fileSize + logFile.length() > maxBytes) rotateFile();
+					fileOut.write(logFile.toString());
+					fileOut.flush();
+					fileSize += logFile.length();
+				}
+				catch(IOException e)
+				{
+					System.err.println("Problem writing to the log file."); e.printStackTrace();
+				}
+			}
+		}
+
+		/**Opens the log file, first renaming the current file to .1 (and .1 to .2 and so on) if it is too big 
+		 * @throws IOException Caused by the log file being unable to open*/
+		private void rotateFile() throws IOException
+		{
+			if(fileOut != null) fileOut.close();
+			if(file.length() > 0 && (fileOut != null || file.length() >= maxBytes))
+			{
+				new File(file.getPath()+"."+maxFiles).delete();
+				for(int x = maxFiles - 1; x >= 1; x--)
+				{
+					new File(file.getPath()+"."+x).renameTo(new File(file.getPath()+"."+(x + 1)));
+				}
+				file.renameTo(new File(file.getPath()+".1"));
+			}
+			fileOut = new BufferedWriter(new FileWriter(file, true));
+			fileSize = file.length();
+		}
+
+		/**Stops the writer thread once every waiting message has been written, waiting up to 2 seconds for it to finish.
+		 * Called when the program closes.*/
+		public void close()
+		{
+			synchronized(this)
+			{
+				closed = true;
+				notifyAll();
+			}
+			try {writerThread.join(2000);}
+			catch(InterruptedException e) {}
+		}
+	}
+
+	/**A stage of the {@link MessagePipeline}, which can change or block the messages clients send */
+	interface MessageStage
+	{
+		/**Checks a message sent by a client
+		 * @param sender The name of the client who sent the message
+		 * @param message The text of the message
+		 * @return String - The message to pass to the next stage (changed or not), or null to block the message*/
+		String process(String sender, String message);
+	}
+
+	/**Passes every message clients send (chat, whispers, publishes and batches) through its stages before it is sent.
+	 * Stages can be added while the server is running, messages already being processed use the stages that were 
+	 * there when they started.*/
+	static class MessagePipeline
+	{
+		/**The stages in the order they are run, replaced rather than changed when a stage is added */
+		private volatile MessageStage[] stages = new MessageStage[0];
+
+		/**The number of messages a stage has blocked */
+		private final AtomicLong blocked = new AtomicLong();
+
+		/**Adds a stage to the end of the pipeline */
+		synchronized void addStage(MessageStage stage)
+		{
+			MessageStage[] newStages = Arrays.copyOf(stages, stages.length + 1);
+			newStages[stages.length] = stage;
+			stages = newStages;
+		}
+
+		/**Runs a message through every stage
+		 * @param sender The name of the client who sent the message
+		 * @param message The text of the message
+		 * @return String - The message to send, or null if a stage blocked it*/
+		String process(String sender, String message)
+		{
+			for(MessageStage stage : stages)
+			{
+				message = stage.process(sender, message);
+				if(message == null)
+				{
+					blocked.incrementAndGet();
+					return null;
+				}
+			}
+			return message;
+		}
+
+		/**Returns the number of messages that have been blocked */
+		long getBlockedCount()
+		{
+			return blocked.get();
+		}
+	}
+
+	/**A {@link MessageStage} that uses a {@link WordMatcher} to replace the words it finds with *s, or to block messages containing them.
+	 * <br> The matcher can be swapped for a new one while clients are sending messages, which is how the word list is reloaded.*/
+	static class WordFilter implements MessageStage
+	{
+		/**Finds the words, replaced by {@link WordFilter#setMatcher(WordMatcher)} */
+		private volatile WordMatcher matcher;
+
+		/**true to block messages with the words in, false to mask the words */
+		private final boolean blocking;
+
+		/**Creates a filter
+		 * @param matcher Finds the words to filter
+		 * @param blocking true to block messages with the words in, false to replace the words with *s*/
+		WordFilter(WordMatcher matcher, boolean blocking)
+		{
+			this.matcher = matcher;
+			this.blocking = blocking;
+		}
+
+		/**Starts using a new list of words, messages that are already being checked finish with the old list */
+		void setMatcher(WordMatcher matcher)
+		{
+			this.matcher = matcher;
+		}
+
+		public String process(String sender, String message)
+		{
+			if(blocking) return matcher.matches(message) ? null : message;
+			return matcher.mask(message);
+		}
+	}
+
+	/**Finds words from a list in messages using an Aho-Corasick automaton. The automaton is built once when the list is
+	 * loaded, then each message is checked by looking at each of its characters once however many words are in the list.
+	 * <br> Words are matched ignoring case and only as whole words, so "ass" is not found in "class". The ends of a word that
+	 * are not letters or numbers can be next to anything, so "http://" and "badsite.com" are found in links.
+	 * <br> Checking a message does not create any objects, unless words are found and have to be masked.*/
+	static class WordMatcher
+	{
+		/**The most characters the words in a list can have altogether, bigger lists are refused so loading one cannot use up the memory */
+		static final int MAX_CHARACTERS = 1000000;
+
+		/**The most entries the full transition table can have (64 MB). Lists that would need more, such as lists with thousands of 
+		 * different characters, use the smaller but slower {@link WordMatcher#children} table instead.*/
+		static final int MAX_TABLE_SIZE = 16 * 1024 * 1024;
+
+		/**The symbol for each character, characters that are not in any word are symbol 0 */
+		private final int[] symbols = new int[Character.MAX_VALUE + 1];
+
+		/**The number of different symbols, including symbol 0 */
+		private final int symbolCount;
+
+		/**The state moved to from each state for each symbol, at [state * symbolCount + symbol]. State 0 is the start. 
+		 * Null if the table would be bigger than {@link WordMatcher#MAX_TABLE_SIZE}.*/
+		private int[] transitions;
+
+		/**The children of each state in the trie of the words, as a hash table from (state * 65536 + symbol) to the child state.
+		 * Used to build the automaton, and to match messages if there is no full transition table.*/
+		private long[] childKeys;
+
+		/**The child state for each key in {@link WordMatcher#childKeys} */
+		private int[] children;
+
+		/**The state to carry on from when a state has no child for a character: the longest end of the state's text 
+		 * that is also the start of a word*/
+		private int[] failures;
+
+		/**The length of the word that ends at each state, 0 if no word ends there */
+		private int[] wordLengths;
+
+		/**For each state, the next state (following the failure links) that a word ends at, 0 if there are no more.
+		 * Used to find the shorter words that end at the same character as a longer one.*/
+		private int[] outputs;
+
+		/**The number of words in the list */
+		private final int wordCount;
+
+		/**Builds the automaton for a list of words
+		 * @param words The words to find, blank words are ignored
+		 * @throws IllegalArgumentException If the words have more than {@link WordMatcher#MAX_CHARACTERS} characters altogether*/
+		WordMatcher(Collection<String> words)
+		{
+			//Giving each character used in the words a symbol, so the transition table only needs a column for those
+			long totalLength = 0;
+			int nextSymbol = 1;
+			for(String word : words)
+			{
+				totalLength += word.length();
+				if(totalLength > MAX_CHARACTERS)
+				{
+					throw new IllegalArgumentException("The list of words is too big, it can have at most "+MAX_CHARACTERS+" characters");
+				}
+				for(int x = 0; x < word.length(); x++)
+				{
+					char character = Character.toLowerCase(word.charAt(x));
+					if(symbols[character] == 0) symbols[character] = nextSymbol++;
+				}
+			}
+			symbolCount = nextSymbol;
+
+			//Giving upper case characters the same symbol as their lower case, so messages do not have to be changed to lower case
+			for(int character = 0; character <= Character.MAX_VALUE; character++)
+			{
+				if(symbols[character] == 0) symbols[character] = symbols[Character.toLowerCase((char) character)];
+			}
+
+			//Building the trie of the words. Each state's children are also linked together so they can be gone through in order.
+			int maxStates = (int) totalLength + 1;
+			int tableSize = Integer.highestOneBit(maxStates * 2 - 1) * 2;
+			childKeys = new long[tableSize];
+			Arrays.fill(childKeys, -1);
+			children = new int[tableSize];
+			int[] firstChild = new int[maxStates];
+			int[] nextSibling = new int[maxStates];
+			int[] childSymbols = new int[maxStates];
+			wordLengths = new int[maxStates];
+			int states = 1;
+			int count = 0;
+			for(String word : words)
+			{
+				word = word.trim();
+				if(word.isEmpty()) continue;
+				int state = 0;
+				for(int x = 0; x < word.length(); x++)
+				{
+					int symbol = symbols[word.charAt(x)];
+					int child = getChild(state, symbol);
+					if(child == 0)
+					{
+						child = states++;
+						addChild(state, symbol, child);
+						childSymbols[child] = symbol;
+						nextSibling[child] = firstChild[state];
+						firstChild[state] = child;
+					}
+					state = child;
+				}
+				wordLengths[state] = word.length();
+				count++;
+			}
+			wordCount = count;
+			wordLengths = Arrays.copyOf(wordLengths, states);
+
+			//Going through the states in order of depth to add the failure links
+			failures = new int[states];
+			outputs = new int[states];
+			int[] queue = new int[states];
+			int head = 0;
+			int tail = 1; //The start state is at queue[0]
+			while(head < tail)
+			{
+				int state = queue[head++];
+				for(int child = firstChild[state]; child != 0; child = nextSibling[child])
+				{
+					int fallback = 0;
+					if(state != 0)
+					{
+						int failure = failures[state];
+						while(failure != 0 && getChild(failure, childSymbols[child]) == 0) failure = failures[failure];
+						fallback = getChild(failure, childSymbols[child]);
+					}
+					failures[child] = fallback;
+					outputs[child] = (wordLengths[fallback] > 0) ? fallback : outputs[fallback];
+					queue[tail++] = child;
+				}
+			}
+
+			//Making the full transition table if it is small enough, so matching never has to follow failure links.
+			//Each state's row starts as a copy of its failure state's row, which is already finished since it is less deep.
+			if((long) states * symbolCount <= MAX_TABLE_SIZE)
+			{
+				transitions = new int[states * symbolCount];
+				for(int x = 0; x < states; x++)
+				{
+					int state = queue[x];
+					if(state != 0) System.arraycopy(transitions, failures[state] * symbolCount, transitions, state * symbolCount, symbolCount);
+					for(int child = firstChild[state]; child != 0; child = nextSibling[child])
+					{
+						transitions[state * symbolCount + childSymbols[child]] = child;
+					}
+				}
+				childKeys = null;
+				children = null;
+				failures = null;
+			}
+		}
+
+		/**Returns the child of a state in the trie for a symbol, or 0 if it has none */
+		private int getChild(int state, int symbol)
+		{
+			long key = (long) state * 65536 + symbol;
+			int mask = childKeys.length - 1;
+			for(int position = hash(key) & mask; childKeys[position] != -1; position = (position + 1) & mask)
+			{
+				if(childKeys[position] == key) return children[position];
+			}
+			return 0;
+		}
+
+		/**Adds a child to a state in the trie */
+		private void addChild(int state, int symbol, int child)
+		{
+			long key = (long) state * 65536 + symbol;
+			int mask = childKeys.length - 1;
+			int position = hash(key) & mask;
+			while(childKeys[position] != -1) position = (position + 1) & mask;
+			childKeys[position] = key;
+			children[position] = child;
+		}
+
+		/**Spreads the bits of a key so keys next to each other are not next to each other in the hash table */
+		private static int hash(long key)
+		{
+			key *= 0x9E3779B97F4A7C15L;
+			return (int) (key ^ (key >>> 32));
+		}
+
+		/**Returns the state moved to after a character. Uses the full transition table if there is one, 
+		 * otherwise follows the failure links until a state has a child for the character.*/
+		private int next(int state, char character)
+		{
+			int symbol = symbols[character];
+			if(transitions != null) return transitions[state * symbolCount + symbol];
+			if(symbol == 0) return 0;
+			while(true)
+			{
+				int child = getChild(state, symbol);
+				if(child != 0 || state == 0) return child;
+				state = failures[state];
+			}
+		}
+
+		/**Reads a list of words from a file, one word (or phrase) per line. Blank lines and lines starting with // are ignored.
+		 * @param file The file to read
+		 * @return WordMatcher - Matcher for the words in the file
+		 * @throws IOException Caused by the file being unable to be read
+		 * @throws IllegalArgumentException Caused by the file having too many characters, see {@link WordMatcher#MAX_CHARACTERS}*/
+		static WordMatcher load(File file) throws IOException
+		{
+			ArrayList<String> words = new ArrayList<String>();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try
+			{
+				String line;
+				while( (line = reader.readLine()) != null )
+				{
+					if(!line.startsWith("//")) words.add(line.trim());
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+			return new WordMatcher(words);
+		}
+
+		/**Returns the number of words being looked for */
+		int getWordCount()
+		{
+			return wordCount;
+		}
+
+		/**Returns true if the message contains any of the words */
+		boolean matches(String message)
+		{
+			int state = 0;
+			for(int x = 0; x < message.length(); x++)
+			{
+				state = next(state, message.charAt(x));
+				for(int found = (wordLengths[state] > 0) ? state : outputs[state]; found != 0; found = outputs[found])
+				{
+					if( isWholeWord(message, x + 1 - wordLengths[found], x + 1) ) return true;
+				}
+			}
+			return false;
+		}
+
+		/**Replaces every word found in the message with *s
+		 * @param message The message to check
+		 * @return String - The message with the words masked, or the same message if there were none*/
+		String mask(String message)
+		{
+			char[] masked = null; //Only created once a word is found
+			int state = 0;
+			for(int x = 0; x < message.length(); x++)
+			{
+				state = next(state, message.charAt(x));
+				for(int found = (wordLengths[state] > 0) ? state : outputs[state]; found != 0; found = outputs[found])
+				{
+					int start = x + 1 - wordLengths[found];
+					if( isWholeWord(message, start, x + 1) )
+					{
+						if(masked == null) masked = message.toCharArray();
+						Arrays.fill(masked, start, x + 1, '*');
+						break; //Any shorter words ending here are inside the one just masked
+					}
+				}
+			}
+			return (masked == null) ? message : new String(masked);
+		}
+
+		/**Returns true if the part of the message is not joined onto the letters or numbers either side of it */
+		private static boolean isWholeWord(String message, int start, int end)
+		{
+			boolean startsWord = start == 0 || !Character.isLetterOrDigit(message.charAt(start)) 
+					|| !Character.isLetterOrDigit(message.charAt(start - 1));
+			boolean endsWord = end == message.length() || !Character.isLetterOrDigit(message.charAt(end - 1)) 
+					|| !Character.isLetterOrDigit(message.charAt(end));
+			return startsWord && endsWord;
+		}
+	}
+
+	/**Stores whispers to clients who are not in the server, so they can be given to them when they next join.
+	 * <br> Each name belongs to the first client that joins with it while sending a mailbox key (/mailbox (key), which the 
+	 * client keeps between runs). Stored whispers are only given to a client with the same key, so somebody else taking 
+	 * the name cannot read them. Clients that do not send a key have no mailbox.
+	 * <br> Whispers can only be stored for names that have been in the server recently, which are listed in the index file 
+	 * with the time they were last seen and a hash of their key (one name per line, added to each time the owner joins or leaves). The whispers for each 
+	 * name are added to the end of that name's own file, one line per whisper, and the number waiting for each name is kept 
+	 * in memory so the quota can be checked without reading the file. The file is deleted once the whispers have been delivered.
+	 * <br> Each name can have at most quota whispers waiting, and whispers older than the time to live are thrown away
+	 * when the server starts, when the quota is reached and when they are delivered. Names not seen for the name time to live
+	 * are forgotten, along with their whispers, when the server starts and whenever the index has grown to twice the 
+	 * number of names, which is also when the index is rewritten with one line per name.*/
+	private static class Mailbox
+	{
+		/**The directory the index and whisper files are kept in */
+		private final File directory;
+
+		/**The file listing every name that has been in the server recently */
+		private final File indexFile;
+
+		/**The most whispers that can wait for one name */
+		private final int quota;
+
+		/**How long (in milliseconds) a whisper is kept before it is thrown away */
+		private final long timeToLive;
+
+		/**How long (in milliseconds) after a client was last in the server its name is forgotten */
+		private final long nameTimeToLive;
+
+		/**Where problems storing whispers are logged */
+		private final ServerLog log;
+
+		/**The number of whispers waiting for each name that has been in the server recently */
+		private final HashMap<String, Integer> waiting = new HashMap<String, Integer>();
+
+		/**The time each name in {@link Mailbox#waiting} was last seen in the server */
+		private final HashMap<String, Long> lastSeen = new HashMap<String, Long>();
+
+		/**The hash of the key of the client each name belongs to, see {@link Mailbox#hash(String)} */
+		private final HashMap<String, String> keys = new HashMap<String, String>();
+
+		/**The number of lines in the index file */
+		private int indexLines = 0;
+
+		/**Opens the mailbox, reading the names from the index, forgetting the names not seen recently and counting 
+		 * the whispers waiting for each name
+		 * @param directory The directory to keep the files in, created if it does not exist
+		 * @param quota The most whispers that can wait for one name
+		 * @param timeToLive How long (in milliseconds) a whisper is kept
+		 * @param nameTimeToLive How long (in milliseconds) a name is kept after it was last seen
+		 * @param log Where problems storing whispers are logged
+		 * @throws IOException Caused by the directory or index being unable to be read or created*/
+		Mailbox(File directory, int quota, long timeToLive, long nameTimeToLive, ServerLog log) throws IOException
+		{
+			this.directory = directory;
+			this.indexFile = new File(directory, "index");
+			this.quota = quota;
+			this.timeToLive = timeToLive;
+			this.nameTimeToLive = nameTimeToLive;
+			this.log = log;
+
+			if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Could not create "+directory);
+			if(indexFile.exists())
+			{
+				BufferedReader index = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+				try
+				{
+					String line;
+					while( (line = index.readLine()) != null )
+					{
+						if(line.equals("")) continue;
+						//Lines are (time last seen) tab (key hash) tab (name), later lines replace earlier ones for the same name
+						String[] parts = line.split("\t", 3);
+						long time = -1;
+						if(parts.length == 3)
+						{
+							try {time = Long.parseLong(parts[0]);}
+							catch(NumberFormatException e) {}
+						}
+						if(time == -1)
+						{
+							//An index from before names had owners, nobody can prove the whispers are theirs so they are thrown away
+							getWhisperFile(parts[parts.length - 1]).delete();
+							continue;
+						}
+						lastSeen.put(parts[2], time);
+						keys.put(parts[2], parts[1]);
+					}
+				}
+				finally
+				{
+					index.close();
+				}
+			}
+			removeForgottenNames();
+			for(String name : lastSeen.keySet())
+			{
+				waiting.put(name, removeExpired(name).size());
+			}
+		}
+
+		/**Stores a whisper for a client who is not in the server
+		 * @param reciever The name of the client the whisper is for
+		 * @param sender The name of the client(or ADMIN) sending the whisper
+		 * @param message The whisper
+		 * @return WhisperResult - STORED, MAILBOX_FULL if the reciever has too many whispers waiting, or NOBODY if the reciever has not been in the server recently*/
+		public synchronized WhisperResult store(String reciever, String sender, String message)
+		{
+			Integer count = waiting.get(reciever);
+			if(count == null) return WhisperResult.NOBODY;
+			try
+			{
+				if(count >= quota)
+				{
+					count = removeExpired(reciever).size();
+					waiting.put(reciever, count);
+					if(count >= quota) return WhisperResult.MAILBOX_FULL;
+				}
+
+				Writer whispers = new OutputStreamWriter(new FileOutputStream(getWhisperFile(reciever), true), "UTF-8");
+				try
+				{
+					//Tabs separate the parts of the line so they are removed from the sender's name
+					whispers.write(System.currentTimeMillis()+"\t"+sender.replace('\t', ' ')+"\t"+message+"\n");
+				}
+				finally
+				{
+					whispers.close();
+				}
+				waiting.put(reciever, count + 1);
+				return WhisperResult.STORED;
+			}
+			catch(IOException e)
+			{
+				log.error("Problem storing a whisper for "+reciever+".", e);
+				return WhisperResult.MAILBOX_FULL;
+			}
+		}
+
+		/**Records that the client has joined, then removes and returns the whispers waiting for it. If nobody owns
+		 * the name yet, it now belongs to the client's key.
+		 * @param name The name of the client that has joined
+		 * @param key The mailbox key the client sent
+		 * @return ArrayList - The whispers, oldest first, ready to be written to the client, or null if the name belongs to a client with a different key
+		 * @throws IOException Caused by the files being unable to be read or written*/
+		public synchronized ArrayList<String> collect(String name, String key) throws IOException
+		{
+			String keyHash = hash(key);
+			if(keys.containsKey(name) && !keys.get(name).equals(keyHash)) return null;
+
+			ArrayList<String> delivered = new ArrayList<String>();
+			Integer count = waiting.get(name);
+			see(name, keyHash);
+			if(count == null || count == 0) return delivered;
+
+			SimpleDateFormat timeFormat = new SimpleDateFormat("dd/MM HH:mm");
+			for(String line : removeExpired(name))
+			{
+				String[] parts = line.split("\t", 3);
+				delivered.add("("+timeFormat.format(new Date(Long.parseLong(parts[0])))+") "+parts[1]+" whispered to you: "+parts[2]);
+			}
+			getWhisperFile(name).delete();
+			waiting.put(name, 0);
+			return delivered;
+		}
+
+		/**Records that the client has left, so its name is kept for the name time to live from now. 
+		 * Nothing is recorded if the name does not belong to the client's key.
+		 * @param name The name of the client that has left
+		 * @param key The mailbox key the client sent*/
+		public synchronized void leave(String name, String key)
+		{
+			String keyHash = hash(key);
+			if(!keyHash.equals(keys.get(name))) return;
+			try
+			{
+				see(name, keyHash);
+			}
+			catch(IOException e)
+			{
+				log.error("Problem adding "+name+" to the mailbox index.", e);
+			}
+		}
+
+		/**Adds a line to the index saying the name has been seen now. If the index has grown to twice the number
+		 * of names, the names not seen recently are forgotten and the index is rewritten.
+		 * @param name The name of the client that joined or left
+		 * @param keyHash The hash of the key of the client the name belongs to
+		 * @throws IOException Caused by the index being unable to be written*/
+		private void see(String name, String keyHash) throws IOException
+		{
+			long now = System.currentTimeMillis();
+			if(!waiting.containsKey(name)) waiting.put(name, 0);
+			lastSeen.put(name, now);
+			keys.put(name, keyHash);
+
+			Writer index = new OutputStreamWriter(new FileOutputStream(indexFile, true), "UTF-8");
+			try {index.write(now+"\t"+keyHash+"\t"+name+"\n");}
+			finally {index.close();}
+			indexLines++;
+			if(indexLines >= lastSeen.size() * 2 + 100) removeForgottenNames();
+		}
+
+		/**Forgets the names not seen for the name time to live, deleting their whispers, 
+		 * then rewrites the index with one line for each name that is left
+		 * @throws IOException Caused by the index being unable to be written*/
+		private void removeForgottenNames() throws IOException
+		{
+			long oldest = System.currentTimeMillis() - nameTimeToLive;
+			Iterator<Map.Entry<String, Long>> names = lastSeen.entrySet().iterator();
+			while(names.hasNext())
+			{
+				Map.Entry<String, Long> name = names.next();
+				if(name.getValue() < oldest)
+				{
+					names.remove();
+					waiting.remove(name.getKey());
+					keys.remove(name.getKey());
+					getWhisperFile(name.getKey()).delete();
+				}
+			}
+
+			//Writing to a new file then replacing the old one so names are not lost if the server stops part way through
+			File rewritten = new File(directory, "index.tmp");
+			Writer out = new OutputStreamWriter(new FileOutputStream(rewritten), "UTF-8");
+			try
+			{
+				for(Map.Entry<String, Long> name : lastSeen.entrySet())
+				{
+					out.write(name.getValue()+"\t"+keys.get(name.getKey())+"\t"+name.getKey()+"\n");
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+			Files.move(rewritten.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			indexLines = lastSeen.size();
+		}
+
+		/**Reads the whispers waiting for the name, rewriting the file without the whispers older than the time to live
+		 * @param name The name to check
+		 * @return ArrayList - The lines of the whispers that have not expired, oldest first
+		 * @throws IOException Caused by the file being unable to be read or written*/
+		private ArrayList<String> removeExpired(String name) throws IOException
+		{
+			ArrayList<String> kept = new ArrayList<String>();
+			File file = getWhisperFile(name);
+			if(!file.exists()) return kept;
+
+			long oldest = System.currentTimeMillis() - timeToLive;
+			boolean expired = false;
+			BufferedReader whispers = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try
+			{
+				String line;
+				while( (line = whispers.readLine()) != null )
+				{
+					String[] parts = line.split("\t", 3);
+					boolean valid = parts.length == 3;
+					try {valid = valid && Long.parseLong(parts[0]) >= oldest;}
+					catch(NumberFormatException e) {valid = false;}
+					if(valid) kept.add(line);
+					else expired = true;
+				}
+			}
+			finally
+			{
+				whispers.close();
+			}
+
+			if(kept.isEmpty())
+			{
+				file.delete();
+			}
+			else if(expired)
+			{
+				//Writing to a new file then replacing the old one so whispers are not lost if the server stops part way through
+				File rewritten = new File(directory, file.getName()+".tmp");
+				Writer out = new OutputStreamWriter(new FileOutputStream(rewritten), "UTF-8");
+				try
+				{
+					for(String line : kept)
+					{
+						out.write(line+"\n");
+					}
+				}
+				finally
+				{
+					out.close();
+				}
+				Files.move(rewritten.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			return kept;
+		}
+
+		/**Returns the SHA-256 hash of a mailbox key in hexadecimal, so the keys themselves are never written to the index */
+		private static String hash(String key)
+		{
+			try
+			{
+				StringBuilder hex = new StringBuilder();
+				for(byte b : MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8)))
+				{
+					hex.append(String.format("%02x", b));
+				}
+				return hex.toString();
+			}
+			catch(NoSuchAlgorithmException e)
+			{
+				throw new IllegalStateException("Every Java platform has SHA-256", e);
+			}
+		}
+
+		/**Returns the file the whispers for the name are stored in. The name is written in hexadecimal so that
+		 * any name can be used as a file name.*/
+		private File getWhisperFile(String name)
+		{
+			StringBuilder fileName = new StringBuilder("whispers-");
+			for(byte b : name.getBytes(StandardCharsets.UTF_8))
+			{
+				fileName.append(String.format("%02x", b));
+			}
+			return new File(directory, fileName.append(".log").toString());
+		}
+	}
+
+	/**Where the results of admin commands are written to, so the same commands can be used from the command line and the admin port */
+	private interface AdminOutput
+	{
+		/**Writes the result of a command that worked
+		 * @param message The message for the admin to read
+		 * @param fields Pairs of names and values giving the result in a form a program can read, e.g. "clients", 3*/
+		void reply(String message, Object... fields);
+
+		/**Writes the result of a command that could not be done
+		 * @param message The message explaining the problem*/
+		void error(String message);
+	}
+
+	/**Writes the results of admin commands to the command line */
+	private static class ConsoleAdminOutput implements AdminOutput
+	{
+		public void reply(String message, Object... fields)
+		{
+			System.out.println(message);
+		}
+
+		public void error(String message)
+		{
+			System.out.println(message);
+		}
+	}
+
+	/**Writes the results of admin commands as JSON, one object per line, so that programs using the admin port can read them.
+	 * <br> Each line has "ok" (false for errors), "message" and any fields given with the reply, e.g. {"ok":true,"message":"...","clients":3}
+	 * <br> Messages for the admin that are not replies to a command, such as whispers to ADMIN, are written as {"event":true,"message":"..."}.
+	 * The methods are synchronized since these can be written by other threads while a command is being answered.*/
+	private static class JsonAdminOutput implements AdminOutput
+	{
+		/**The output stream of the admin connection */
+		private final PrintWriter textOut;
+
+		JsonAdminOutput(PrintWriter textOut)
+		{
+			this.textOut = textOut;
+		}
+
+		public synchronized void reply(String message, Object... fields)
+		{
+			StringBuilder line = new StringBuilder("{\"ok\":true,\"message\":").append(toJson(message));
+			for(int x = 0; x + 1 < fields.length; x += 2)
+			{
+				line.append(',').append(toJson(String.valueOf(fields[x]))).append(':');
+				//Numbers and booleans are written as they are, everything else as a string
+				if(fields[x+1] instanceof Number || fields[x+1] instanceof Boolean) line.append(fields[x+1]);
+				else line.append(toJson(String.valueOf(fields[x+1])));
+			}
+			textOut.println(line.append('}'));
+			textOut.flush();
+		}
+
+		public synchronized void error(String message)
+		{
+			textOut.println("{\"ok\":false,\"message\":"+toJson(message)+"}");
+			textOut.flush();
+		}
+
+		/**Writes a message for the admin that is not the reply to a command
+		 * @param message The message for the admin to read*/
+		public synchronized void event(String message)
+		{
+			textOut.println("{\"event\":true,\"message\":"+toJson(message)+"}");
+			textOut.flush();
+		}
+
+		/**Returns the string as a JSON string in quotes, with characters JSON does not allow escaped */
+		private static String toJson(String value)
+		{
+			StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+			for(int x = 0; x < value.length(); x++)
+			{
+				char c = value.charAt(x);
+				if(c == '"' || c == '\\') json.append('\\').append(c);
+				else if(c == '\n') json.append("\\n");
+				else if(c < ' ') json.append(String.format("\\u%04x", (int) c));
+				else json.append(c);
+			}
+			return json.append('"').toString();
+		}
+	}
+
+	/**Class extending thread which handles a connection to the admin port. Each line recieved is handled by 
+	 * {@link Server#processAdminInput(String,AdminOutput)} the same way as input from the command line, 
+	 * and the results are written back as JSON using {@link JsonAdminOutput}.*/
+	private class AdminSession extends Thread
+	{
+		/**The socket the admin program has connected to */
+		private Socket socket;
+
+		/**Where replies and messages for the admin are written, null until the connection's streams are opened */
+		private JsonAdminOutput output;
+
+		AdminSession(Socket socket)
+		{
+			this.socket = socket;
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			try
+			{
+				BufferedReader textIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+				output = new JsonAdminOutput(new PrintWriter(new OutputStreamWriter(socket.getOutputStream())));
+				adminOutputs.add(output);
+				String line;
+				while( (line = textIn.readLine()) != null )
+				{
+					processAdminInput(line.trim(), output);
+				}
+			}
+			catch(IOException e) {} //The admin program has disconnected
+			finally
+			{
+				if(output != null) adminOutputs.remove(output);
+				try {socket.close();}
+				catch(IOException e) {}
+			}
+		}
+	}
+
+	/**Numbers the messages written to a client that asked for sequenced messages, and keeps them until the client acknowledges them.
+	 * <br> Sequenced messages are written as ~(sequence) (message). Clients acknowledge with /ack (sequence), which acknowledges
+	 * every message up to that number so clients only need to acknowledge every so often rather than every message.
+	 * <br> If the client loses connection, the outbox is kept in {@link Server#detachedOutboxes} so the unacknowledged 
+	 * messages can be sent again when the client resumes the session.*/
+	private static class Outbox
+	{
+		/**The most unacknowledged messages kept, the client is disconnected if it has more than this so a client that stops 
+		 * acknowledging cannot use up the server's memory */
+		private static final int MAX_UNACKNOWLEDGED = 1000;
+
+		/**Used to create session tokens that cannot be guessed */
+		private static final SecureRandom random = new SecureRandom();
+
+		/**Token the client uses to resume the session */
+		private final String token = Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+
+		/**The sequence number the next message will be given */
+		private long nextSequence = 1;
+
+		/**Messages sent but not yet acknowledged, oldest first */
+		private final ArrayDeque<SequencedMessage> unacknowledged = new ArrayDeque<SequencedMessage>();
+
+		/**Becomes true when a message could not be kept because there were too many unacknowledged, after which nothing more is sent */
+		private boolean overflowed;
+
+		/**The name of the client, set when the client disconnects */
+		private String clientName;
+
+		/**The time the client disconnected, or 0 while it is connected */
+		private long detachedTime;
+
+		/**Numbers the message, keeps it until it is acknowledged and writes it
+		 * @param textOut The output stream of the client
+		 * @param message The message to send
+		 * @param onAcknowledged Run when the message is acknowledged, or null
+		 * @return boolean - true if this message could not be kept because there are too many unacknowledged, 
+		 * so the client should be disconnected*/
+		public synchronized boolean send(PrintWriter textOut, String message, Runnable onAcknowledged)
+		{
+			boolean wasOverflowed = overflowed;
+			queue(textOut, message, onAcknowledged);
+			textOut.flush();
+			return overflowed && !wasOverflowed;
+		}
+
+		/**Numbers each message, keeps them until they are acknowledged and writes them, flushing once after the last message
+		 * @param textOut The output stream of the client
+		 * @param messages The messages to send, in order
+		 * @return boolean - true if the messages could not all be kept because there are too many unacknowledged, 
+		 * so the client should be disconnected*/
+		public synchronized boolean send(PrintWriter textOut, ArrayList<String> messages)
+		{
+			boolean wasOverflowed = overflowed;
+			for(String message : messages)
+			{
+				queue(textOut, message, null);
+			}
+			textOut.flush();
+			return overflowed && !wasOverflowed;
+		}
+
+		/**Numbers the message, keeps it and writes it without flushing. Must be called while synchronized on the outbox.
+		 * <br> If there are already {@link Outbox#MAX_UNACKNOWLEDGED} messages, the outbox is marked as overflowed and the message 
+		 * and every later one is not sent, so the client never recieves messages with a gap before them.*/
+		private void queue(PrintWriter textOut, String message, Runnable onAcknowledged)
+		{
+			if(overflowed) return;
+			if(unacknowledged.size() >= MAX_UNACKNOWLEDGED)
+			{
+				overflowed = true;
+				return;
+			}
+			SequencedMessage sequenced = new SequencedMessage(nextSequence++, message, onAcknowledged);
+			unacknowledged.addLast(sequenced);
+			//While detached the message is only kept, it is written when the client resumes
+			if(detachedTime == 0) textOut.println("~"+sequenced.sequence+" "+message);
+		}
+
+		/**Removes every message up to and including the sequence number, then runs their onAcknowledged actions.
+		 * @param sequence The sequence number of the last message the client has recieved*/
+		public void acknowledge(long sequence)
+		{
+			ArrayList<Runnable> receipts = new ArrayList<Runnable>();
+			synchronized(this)
+			{
+				while(!unacknowledged.isEmpty() && unacknowledged.peekFirst().sequence <= sequence)
+				{
+					SequencedMessage acknowledged = unacknowledged.removeFirst();
+					if(acknowledged.onAcknowledged != null) receipts.add(acknowledged.onAcknowledged);
+				}
+			}
+			//Running the receipts after unlocking since they write to other clients
+			for(Runnable receipt : receipts)
+			{
+				receipt.run();
+			}
+		}
+
+		/**Acknowledges messages up to the sequence number, then writes the remaining unacknowledged messages again and 
+		 * attaches the outbox so new messages are written too. Used when a client resumes a session, with the new connection's output stream.
+		 * @param textOut The output stream of the new connection
+		 * @param lastSequence The sequence number of the last message the client recieved before losing connection
+		 * @param firstLine A line written before the messages, such as /session (token)*/
+		public void resend(PrintWriter textOut, long lastSequence, String firstLine)
+		{
+			acknowledge(lastSequence);
+			synchronized(this)
+			{
+				detachedTime = 0;
+				textOut.println(firstLine);
+				for(SequencedMessage sequenced : unacknowledged)
+				{
+					textOut.println("~"+sequenced.sequence+" "+sequenced.message);
+				}
+				textOut.flush();
+			}
+		}
+
+		/**Records that the client has disconnected, starting the time until the outbox expires
+		 * @param clientName The name of the client the outbox belongs to*/
+		public synchronized void detach(String clientName)
+		{
+			this.clientName = clientName;
+			detachedTime = System.currentTimeMillis();
+		}
+
+		/**Returns true if a message could not be kept because there were too many unacknowledged */
+		public synchronized boolean isOverflowed()
+		{
+			return overflowed;
+		}
+
+		/**Returns the sequence number of the last message sent, or 0 if none have been sent */
+		public synchronized long getLastSequence()
+		{
+			return nextSequence - 1;
+		}
+
+		/**Returns true if there are messages up to and including the sequence number that have not been acknowledged 
+		 * @param sequence The sequence number of the last message to check*/
+		public synchronized boolean hasUnacknowledged(long sequence)
+		{
+			return !unacknowledged.isEmpty() && unacknowledged.peekFirst().sequence <= sequence;
+		}
+
+		/**Returns true if the client has been disconnected for longer than the timeout
+		 * @param timeout How long (in milliseconds) a disconnected client's outbox is kept*/
+		public synchronized boolean isExpired(long timeout)
+		{
+			return detachedTime != 0 && System.currentTimeMillis() - detachedTime > timeout;
+		}
+
+		/**Returns the token used to resume the session */
+		public String getToken()
+		{
+			return token;
+		}
+
+		/**Returns the name of the client the outbox belonged to when it disconnected */
+		public synchronized String getClientName()
+		{
+			return clientName;
+		}
+
+	}
+
+	/**A message kept by an {@link Outbox} with the sequence number it was sent with */
+	private static class SequencedMessage
+	{
+		final long sequence;
+		final String message;
+		final Runnable onAcknowledged;
+
+		SequencedMessage(long sequence, String message, Runnable onAcknowledged)
+		{
+			this.sequence = sequence;
+			this.message = message;
+			this.onAcknowledged = onAcknowledged;
+		}
+	}
+
+	/**Keeps track of which clientSessions are subscribed to which topics so that {@link Server#publish(String,String,String)} 
+	 * can find the subscribers of a topic quickly.
+	 * <br> Topics are words separated by dots (e.g. news.sport). When subscribing, * can be used to match any one word 
+	 * and # can be used as the last word to match any number of words (e.g. news.* or news.#).
+	 * <br> The subscribers of each topic are kept in an array which is never changed once created. Subscribing or unsubscribing 
+	 * copies the array of that one topic under this object's lock and replaces it, so publishing never has to wait for a lock.
+	 * Topics with wildcards are also kept in a {@link WildcardIndex}, which is only replaced when a topic with wildcards changes.
+	 * <br> Each session can have at most maxSubscriptions subscriptions and there can be at most maxTopics topics, so one
+	 * client cannot keep the lock busy or use up the server's memory by subscribing to thousands of topics.*/
+	private static class TopicRegistry
+	{
+		/**The most topics to remember the subscribers of, so publishing to lots of different topics cannot use up memory */
+		private static final int MAX_RESOLVED_TOPICS = 4096;
+
+		/**Subscribers of each topic without wildcards */
+		private final ConcurrentHashMap<String, ClientSession[]> exactTopics = new ConcurrentHashMap<String, ClientSession[]>();
+
+		/**Subscribers of each topic with wildcards. Only used while synchronized on the registry, publishing uses {@link TopicRegistry#wildcards} */
+		private final HashMap<String, ClientSession[]> wildcardTopics = new HashMap<String, ClientSession[]>();
+
+		/**The topics with wildcards split into words, replaced whenever a topic with wildcards is subscribed or unsubscribed to */
+		private volatile WildcardIndex wildcards = new WildcardIndex(wildcardTopics);
+
+		/**The subscribers of topics that have already been published to, replaced with an empty map whenever somebody subscribes or unsubscribes */
+		private volatile ConcurrentHashMap<String, ClientSession[]> resolved = new ConcurrentHashMap<String, ClientSession[]>();
+
+		/**The topics each session is subscribed to, in the order they were subscribed to. Only used while synchronized on the registry.*/
+		private final HashMap<ClientSession, LinkedHashSet<String>> topicsBySession = new HashMap<ClientSession, LinkedHashSet<String>>();
+
+		/**The most topics one session can be subscribed to */
+		private final int maxSubscriptions;
+
+		/**The most topics there can be altogether */
+		private final int maxTopics;
+
+		/**Creates an empty registry
+		 * @param maxSubscriptions The most topics one session can be subscribed to
+		 * @param maxTopics The most topics there can be altogether*/
+		TopicRegistry(int maxSubscriptions, int maxTopics)
+		{
+			this.maxSubscriptions = maxSubscriptions;
+			this.maxTopics = maxTopics;
+		}
+
+		/**Adds the session to the subscribers of the topic
+		 * @param topic The topic (which can contain wildcards) to subscribe to
+		 * @param session The session subscribing
+		 * @return SubscribeResult - SUBSCRIBED, or why the session could not be subscribed*/
+		public synchronized SubscribeResult subscribe(String topic, ClientSession session)
+		{
+			LinkedHashSet<String> sessionTopics = topicsBySession.get(session);
+			if(sessionTopics != null && sessionTopics.contains(topic)) return SubscribeResult.ALREADY_SUBSCRIBED;
+			if(sessionTopics != null && sessionTopics.size() >= maxSubscriptions) return SubscribeResult.TOO_MANY_SUBSCRIPTIONS;
+
+			Map<String, ClientSession[]> subscriptions = hasWildcards(topic) ? wildcardTopics : exactTopics;
+			ClientSession[] current = subscriptions.get(topic);
+			if(current == null)
+			{
+				if(exactTopics.size() + wildcardTopics.size() >= maxTopics) return SubscribeResult.TOO_MANY_TOPICS;
+				current = new ClientSession[0];
+			}
+			ClientSession[] updated = Arrays.copyOf(current, current.length + 1);
+			updated[current.length] = session;
+			subscriptions.put(topic, updated);
+			changed(topic);
+
+			if(sessionTopics == null)
+			{
+				sessionTopics = new LinkedHashSet<String>();
+				topicsBySession.put(session, sessionTopics);
+			}
+			sessionTopics.add(topic);
+			return SubscribeResult.SUBSCRIBED;
+		}
+
+		/**Removes the session from the subscribers of the topic
+		 * @param topic The topic exactly as it was subscribed to
+		 * @param session The session unsubscribing
+		 * @return boolean - false if the session was not subscribed to the topic*/
+		public synchronized boolean unsubscribe(String topic, ClientSession session)
+		{
+			LinkedHashSet<String> sessionTopics = topicsBySession.get(session);
+			if(sessionTopics == null || !sessionTopics.remove(topic)) return false;
+			if(sessionTopics.isEmpty()) topicsBySession.remove(session);
+
+			removeSubscriber(topic, session);
+			changed(topic);
+			return true;
+		}
+
+		/**Removes the session from every topic it is subscribed to, used when the session closes. 
+		 * Only the topics the session is subscribed to are copied.
+		 * @param session The session to remove*/
+		public synchronized void unsubscribeAll(ClientSession session)
+		{
+			LinkedHashSet<String> sessionTopics = topicsBySession.remove(session);
+			if(sessionTopics == null) return;
+
+			boolean wildcardsChanged = false;
+			for(String topic : sessionTopics)
+			{
+				removeSubscriber(topic, session);
+				if(hasWildcards(topic)) wildcardsChanged = true;
+			}
+			if(wildcardsChanged) wildcards = new WildcardIndex(wildcardTopics);
+			resolved = new ConcurrentHashMap<String, ClientSession[]>();
+		}
+
+		/**Returns every session subscribed to the topic, working them out if this topic has not been published to since 
+		 * the subscriptions last changed. The array returned is shared so it must not be changed.
+		 * @param topic The topic being published to (without wildcards)
+		 * @return ClientSession[] - The subscribers of the topic, each session appears once*/
+		public ClientSession[] getSubscribers(String topic)
+		{
+			//Getting the map before the subscriptions, so subscribers worked out from old subscriptions are never put in a new map
+			ConcurrentHashMap<String, ClientSession[]> cache = resolved;
+			ClientSession[] found = cache.get(topic);
+			if(found != null) return found;
+
+			ClientSession[] exact = exactTopics.get(topic);
+			WildcardIndex current = wildcards;
+			if(current.topics.length == 0)
+			{
+				return (exact == null) ? new ClientSession[0] : exact;
+			}
+
+			//Using an identity set since a session can match the topic through more than one subscription
+			Set<ClientSession> matched = Collections.newSetFromMap(new IdentityHashMap<ClientSession, Boolean>());
+			if(exact != null) matched.addAll(Arrays.asList(exact));
+			String[] words = topic.split("\\.");
+			for(int x = 0; x < current.topics.length; x++)
+			{
+				if(WildcardIndex.matches(current.topics[x], words)) matched.addAll(Arrays.asList(current.subscribers[x]));
+			}
+			found = matched.toArray(new ClientSession[matched.size()]);
+
+			if(cache.size() < MAX_RESOLVED_TOPICS) cache.put(topic, found);
+			return found;
+		}
+
+		/**Returns the topics the session is subscribed to
+		 * @param session The session to check
+		 * @return ArrayList - The topics as they were subscribed to*/
+		public synchronized ArrayList<String> getSubscriptions(ClientSession session)
+		{
+			LinkedHashSet<String> sessionTopics = topicsBySession.get(session);
+			return (sessionTopics == null) ? new ArrayList<String>() : new ArrayList<String>(sessionTopics);
+		}
+
+		/**Returns the number of topics that have at least one subscriber
+		 * @return int - The number of topics*/
+		public int getNumberOfTopics()
+		{
+			return exactTopics.size() + wildcards.topics.length;
+		}
+
+		/**Checks the topic is made up of words separated by single dots with no spaces
+		 * @param topic The topic to check
+		 * @param allowWildcards Whether * and # words are allowed (they are when subscribing but not when publishing)
+		 * @return boolean - true if the topic can be used*/
+		public static boolean isValidTopic(String topic, boolean allowWildcards)
+		{
+			if(topic.length() == 0 || topic.length() > 100) return false;
+			String[] words = topic.split("\\.", -1);
+			for(int x = 0; x < words.length; x++)
+			{
+				String word = words[x];
+				if(word.equals("")) return false;
+				if(word.equals("*") || word.equals("#"))
+				{
+					if(!allowWildcards) return false;
+					if(word.equals("#") && x != words.length - 1) return false; //# is only allowed at the end
+				}
+				else if(word.indexOf('*') != -1 || word.indexOf('#') != -1 || word.indexOf(' ') != -1) return false;
+			}
+			return true;
+		}
+
+		/**Returns true if the topic contains * or # */
+		private static boolean hasWildcards(String topic)
+		{
+			return topic.indexOf('*') != -1 || topic.indexOf('#') != -1;
+		}
+
+		/**Replaces the {@link TopicRegistry#wildcards} if the topic has wildcards, then forgets the subscribers worked out 
+		 * for every topic. Must be called after the subscribers of the topic have changed.*/
+		private void changed(String topic)
+		{
+			if(hasWildcards(topic)) wildcards = new WildcardIndex(wildcardTopics);
+			resolved = new ConcurrentHashMap<String, ClientSession[]>();
+		}
+
+		/**Removes the session from the subscribers of a topic, removing the topic if it has no subscribers left */
+		private void removeSubscriber(String topic, ClientSession session)
+		{
+			Map<String, ClientSession[]> subscriptions = hasWildcards(topic) ? wildcardTopics : exactTopics;
+			ClientSession[] current = subscriptions.get(topic);
+			if(current == null) return;
+			int position = indexOf(current, session);
+			if(position == -1) return;
+
+			if(current.length == 1)
+			{
+				subscriptions.remove(topic);
+			}
+			else
+			{
+				ClientSession[] updated = new ClientSession[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, position);
+				System.arraycopy(current, position + 1, updated, position, current.length - position - 1);
+				subscriptions.put(topic, updated);
+			}
+		}
+
+		/**Returns the position of the session in the array or -1 if it is not there */
+		private static int indexOf(ClientSession[] sessions, ClientSession session)
+		{
+			for(int x = 0; x < sessions.length; x++)
+			{
+				if(sessions[x] == session) return x;
+			}
+			return -1;
+		}
+
+	}
+
+	/**A snapshot of the topics with wildcards used by {@link TopicRegistry}, split into words so they can be matched quickly.
+	 * It is never changed after it is created.*/
+	private static class WildcardIndex
+	{
+		/**The subscribed topics that contain wildcards, split into words */
+		final String[][] topics;
+
+		/**The subscribers of each topic in topics */
+		final ClientSession[][] subscribers;
+
+		/**Copies the topics with wildcards
+		 * @param subscriptions The subscribers of each topic with wildcards*/
+		WildcardIndex(HashMap<String, ClientSession[]> subscriptions)
+		{
+			topics = new String[subscriptions.size()][];
+			subscribers = new ClientSession[subscriptions.size()][];
+			int x = 0;
+			for(Map.Entry<String, ClientSession[]> entry : subscriptions.entrySet())
+			{
+				topics[x] = entry.getKey().split("\\.");
+				subscribers[x] = entry.getValue();
+				x++;
+			}
+		}
+
+		/**Checks whether a topic matches a subscription containing wildcards
+		 * @param pattern The words of the subscribed topic
+		 * @param words The words of the topic being published to
+		 * @return boolean - true if the topic matches*/
+		static boolean matches(String[] pattern, String[] words)
+		{
+			for(int x = 0; x < pattern.length; x++)
+			{
+				if(pattern[x].equals("#")) return true; //matches the rest of the words, even if there are none
+				if(x >= words.length) return false;
+				if(!pattern[x].equals("*") && !pattern[x].equals(words[x])) return false;
+			}
+			return pattern.length == words.length;
+		}
+
+	}
+	
+}
+
+
+
+//The latency histogram class is used by both the client and the server programs. Since the programs are separate, the class is included in both java files.
+/**Counts how long traced messages took at one stage of being sent, in buckets that double in size (0 microseconds, 1, 2 to 3, 
+ * 4 to 7...) so times can be recorded by lots of threads at once without locking or keeping every time. 
+ * Percentiles are given as the top of the bucket they fall in, so they are never more than twice the real time.
+ * <br> Times compared between two computers include the difference between their clocks, times below 0 are counted as 0.*/
+class LatencyHistogram
+{
+	/**Added to {@link System#nanoTime()} (in microseconds) to give the time since 1970, so times can be sent to other programs */
+	private static final long MICROS_OFFSET = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+
+	/**What is being measured, such as "Server read to dispatch" */
+	private final String name;
+
+	/**The number of times in each bucket, bucket b holds times from 2^(b-1) to 2^b - 1 microseconds */
+	private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+	/**The longest time recorded in microseconds */
+	private final AtomicLong slowest = new AtomicLong();
+
+	/**Creates an empty histogram
+	 * @param name What is being measured*/
+	LatencyHistogram(String name)
+	{
+		this.name = name;
+	}
+
+	/**Returns the current time in microseconds since 1970, used to stamp traced messages. The time comes from 
+	 * {@link System#nanoTime()} so times taken by the same program can be compared to the microsecond.*/
+	static long currentMicros()
+	{
+		return System.nanoTime() / 1000 + MICROS_OFFSET;
+	}
+
+	/**Records a time
+	 * @param micros The time in microseconds*/
+	void record(long micros)
+	{
+		if(micros < 0) micros = 0;
+		buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(micros));
+		long current;
+		while( micros > (current = slowest.get()) && !slowest.compareAndSet(current, micros) ) {}
+	}
+
+	/**Returns the number of times recorded */
+	long getCount()
+	{
+		long count = 0;
+		for(int x = 0; x < buckets.length(); x++)
+		{
+			count += buckets.get(x);
+		}
+		return count;
+	}
+
+	/**Returns a time that the percentage of recorded times were at or below
+	 * @param percent The percentile to get, such as 50 for the median
+	 * @return long - The time in microseconds, 0 if nothing has been recorded*/
+	long getPercentile(double percent)
+	{
+		long count = getCount();
+		long target = (long) Math.ceil(count * percent / 100);
+		long seen = 0;
+		for(int x = 0; x < buckets.length(); x++)
+		{
+			seen += buckets.get(x);
+			if(seen >= target && seen > 0) return Math.min(slowest.get(), (x == 0) ? 0 : (1L << x) - 1);
+		}
+		return slowest.get();
+	}
+
+	/**Returns the longest time recorded in microseconds */
+	long getSlowest()
+	{
+		return slowest.get();
+	}
+
+	/**Returns what is being measured */
+	String getName()
+	{
+		return name;
+	}
+
+	/**Returns one line describing the times recorded, such as "Server read to dispatch: 20 messages, median 0.1 ms, ..." */
+	String getSummary()
+	{
+		long count = getCount();
+		if(count == 0) return name+": no messages traced yet";
+		return name+": "+count+" messages, median "+formatMicros(getPercentile(50))+", 99% "+formatMicros(getPercentile(99))+
+				", slowest "+formatMicros(getSlowest());
+	}
+
+	/**Returns a time in microseconds as milliseconds (or seconds if it is long) to read */
+	static String formatMicros(long micros)
+	{
+		if(micros >= 10000000) return String.format("%.1f s", micros / 1e6);
+		return String.format("%.3f ms", micros / 1e3);
+	}
 }
 
 
@@ -0,0 +1,675 @@
+import java.io.*;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**Class containing {@link SimulationHarness#main(String[])} which runs a server in this program and connects thousands of
+ * simulated clients to it through in-memory sockets, so that problems which only happen under load (such as two clients
+ * getting the same name) can be found without a network.
+ * <br> Usage: java SimulationHarness [--clients=1000] [--messages=5] [--runs=1] [--seed=(number)] [--kickChance=0.05]
+ * [--disconnectChance=0.1] [--slowChance=0.1] [--batchChance=0.1] [--observers=(number)] [--timeoutSeconds=300] [server settings...]
+ * <br> Each run starts a new server. Every client tries to take a name many other clients want, sends its messages and may
+ * be kicked, disconnect suddenly, read slowly or try to send a batch without being trusted. Observers are clients that never leave, and after every client has
+ * finished the harness checks that:
+ * <br> - No two clients had the same name at the same time
+ * <br> - Every message reached every observer, or reached none of them because its sender lost connection (counted as dropped)
+ * <br> - No message was recieved twice
+ * <br> - No line of a batch sent by a client that is not trusted was sent to anyone as chat
+ * <br> - The server has no sessions left for clients that have gone
+ * <br> The random choices each client makes come from the seed, so a run that finds a problem can be repeated with the same
+ * seed (the order the threads run in can still be different). The program exits with 1 if any check failed.
+ * <br> Compile together with the server: javac Server.java SimulationHarness.java*/
+public class SimulationHarness
+{
+	/**The most bytes each direction of a simulated connection holds before the writer has to wait, like a TCP buffer */
+	private static final int PIPE_CAPACITY = 16 * 1024;
+
+	/**How long (in milliseconds) to wait for the clients to finish or the server to reply before counting it as a failure */
+	private long timeout;
+
+	/**The settings for the harness, also passed to each server */
+	private Server.ServerConfig config;
+
+	/**The number of clients in each run */
+	private int clients;
+
+	/**The number of messages each client (apart from observers) sends */
+	private int messages;
+
+	/**The number of clients that never leave and check which messages arrived */
+	private int observers;
+
+	/**The chance of a client being kicked, disconnecting suddenly, reading slowly and sending a batch without being trusted */
+	private double kickChance, disconnectChance, slowChance, batchChance;
+
+	/**The number of lines from batches that should have been refused which observers recieved in the current run */
+	private AtomicInteger leakedBatchLines = new AtomicInteger();
+
+	/**The server being tested in the current run */
+	private Server server;
+
+	/**The clients that have been told they have each name in the current run, used to find two clients with the same name */
+	private ConcurrentHashMap<String, SimulatedClient> names = new ConcurrentHashMap<String, SimulatedClient>();
+
+	/**Counted down once every observer has joined, so no client sends a message before an observer can see it */
+	private CountDownLatch observersJoined;
+
+	/**Counted down as each client that is not an observer finishes */
+	private CountDownLatch sendersFinished;
+
+	/**Set when every client in the current run has finished, to stop checking the server's names */
+	private volatile boolean finished;
+
+	/**Descriptions of the checks that failed in the current run */
+	private ArrayList<String> failures = new ArrayList<String>();
+
+	/**Creates the harness from the command line arguments and runs it using {@link SimulationHarness#runSimulations(long,int)}
+	 * @param args Settings in the form --(setting)=(value)*/
+	public static void main(String[] args) throws Exception
+	{
+		//Server messages would hide the results, they can still be logged with --log.console=true
+		if(System.getProperty("log.console") == null) System.setProperty("log.console", "false");
+
+		SimulationHarness harness = new SimulationHarness();
+		harness.config = new Server.ServerConfig(args);
+		harness.clients = Math.max(2, harness.config.getInt("clients", 1000));
+		harness.messages = harness.config.getInt("messages", 5);
+		harness.observers = Math.min(harness.clients - 1, Math.max(1, harness.config.getInt("observers", harness.clients / 10)));
+		harness.kickChance = Double.parseDouble(harness.config.getString("kickChance", "0.05"));
+		harness.disconnectChance = Double.parseDouble(harness.config.getString("disconnectChance", "0.1"));
+		harness.slowChance = Double.parseDouble(harness.config.getString("slowChance", "0.1"));
+		harness.batchChance = Double.parseDouble(harness.config.getString("batchChance", "0.1"));
+		harness.timeout = harness.config.getLong("timeoutSeconds", 300) * 1000;
+
+		boolean passed = harness.runSimulations(harness.config.getLong("seed", System.currentTimeMillis()), harness.config.getInt("runs", 1));
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**Runs the simulation a number of times with a different seed each time
+	 * @param seed The seed for the first run, each run after uses the next number
+	 * @param runs The number of runs
+	 * @return boolean - true if every check passed in every run*/
+	private boolean runSimulations(long seed, int runs) throws Exception
+	{
+		boolean passed = true;
+		for(int run = 0; run < runs; run++)
+		{
+			if(runSimulation(seed + run)) System.out.println("  Every check passed.");
+			else passed = false;
+		}
+		return passed;
+	}
+
+	/**Starts a server, runs every client against it, then checks the results and prints them
+	 * @param seed The seed for the random choices the clients make
+	 * @return boolean - true if every check passed*/
+	private boolean runSimulation(long seed) throws Exception
+	{
+		Random random = new Random(seed);
+		server = new Server(config);
+		names.clear();
+		failures.clear();
+		leakedBatchLines.set(0);
+		observersJoined = new CountDownLatch(observers);
+		sendersFinished = new CountDownLatch(clients - observers);
+
+		SimulatedClient[] simulatedClients = new SimulatedClient[clients];
+		for(int x = 0; x < clients; x++)
+		{
+			simulatedClients[x] = new SimulatedClient(x, x < observers, random);
+		}
+
+		long startTime = System.nanoTime();
+		finished = false;
+		final int[] duplicateNames = new int[1];
+		Thread nameChecker = new Thread()
+		{
+			public void run()
+			{
+				//Repeatedly checking the server never has two clients with the same name
+				while(!finished)
+				{
+					ArrayList<String> clientNames = server.getClientNames();
+					if(new HashSet<String>(clientNames).size() != clientNames.size()) duplicateNames[0]++;
+					Thread.yield();
+				}
+			}
+		};
+		nameChecker.start();
+
+		for(SimulatedClient client : simulatedClients)
+		{
+			client.start();
+		}
+		long giveUpTime = System.currentTimeMillis() + timeout;
+		int stuck = 0;
+		for(SimulatedClient client : simulatedClients)
+		{
+			client.join(Math.max(1, giveUpTime - System.currentTimeMillis()));
+			if(client.isAlive()) stuck++;
+			else if(client.failure != null) failures.add("Client "+client.index+" failed: "+client.failure);
+		}
+		if(stuck > 0) failures.add(stuck+" clients were still running after "+timeout / 1000+" seconds.");
+		long runTime = System.nanoTime() - startTime;
+		finished = true;
+		nameChecker.join();
+		if(duplicateNames[0] > 0) failures.add("The server had two clients with the same name "+duplicateNames[0]+" times.");
+
+		//Checking the server has closed the sessions of every client that left
+		int connected = 0;
+		for(SimulatedClient client : simulatedClients)
+		{
+			if(!client.left) connected++;
+		}
+		int leaked = waitForClientCount(connected);
+		if(leaked != 0) failures.add("The server had "+leaked+" sessions for clients that had left.");
+
+		//The sessions of clients that left may have sent messages after the observers last heard from the server
+		for(int x = 0; x < observers; x++)
+		{
+			try
+			{
+				simulatedClients[x].waitForServer();
+			}
+			catch(Exception e)
+			{
+				failures.add("Observer "+x+" failed: "+e);
+			}
+		}
+		printResults(seed, simulatedClients, runTime);
+
+		for(SimulatedClient client : simulatedClients)
+		{
+			client.leave();
+		}
+		leaked = waitForClientCount(0);
+		if(leaked != 0) failures.add("The server had "+leaked+" sessions after every client left.");
+
+		for(String failure : failures)
+		{
+			System.out.println("  "+failure);
+		}
+		return failures.isEmpty();
+	}
+
+	/**Waits until the server has the number of sessions expected, or the timeout passes
+	 * @param expected The number of sessions there should be
+	 * @return int - The number of sessions more than expected (0 if the server got to the number expected)*/
+	private int waitForClientCount(int expected) throws InterruptedException
+	{
+		long giveUpTime = System.currentTimeMillis() + timeout;
+		while(server.getClientCount() != expected && System.currentTimeMillis() < giveUpTime)
+		{
+			Thread.sleep(10);
+		}
+		return server.getClientCount() - expected;
+	}
+
+	/**Works out which messages were delivered or dropped and prints the results of the run
+	 * @param seed The seed of the run
+	 * @param simulatedClients Every client in the run
+	 * @param runTime How long (in nanoseconds) the clients took*/
+	private void printResults(long seed, SimulatedClient[] simulatedClients, long runTime)
+	{
+		int sent = 0, delivered = 0, dropped = 0, lost = 0, partial = 0, duplicated = 0;
+		int kicked = 0, disconnected = 0, slow = 0, batches = 0, nameCollisions = 0;
+		long linesRead = 0, totalJoinTime = 0, slowestJoinTime = 0;
+		for(SimulatedClient client : simulatedClients)
+		{
+			if(client.kick) kicked++;
+			if(client.disconnect) disconnected++;
+			if(client.slow) slow++;
+			if(client.untrustedBatch) batches++;
+			nameCollisions += client.nameCollisions;
+			linesRead += client.linesRead.get();
+			totalJoinTime += client.joinTime;
+			slowestJoinTime = Math.max(slowestJoinTime, client.joinTime);
+			if(client.observer) duplicated += client.duplicates;
+
+			for(int message = 0; message < client.sent; message++)
+			{
+				sent++;
+				int recievedBy = 0;
+				for(int x = 0; x < observers; x++)
+				{
+					if(simulatedClients[x].recieved.get(client.index * messages + message)) recievedBy++;
+				}
+				if(recievedBy == observers) delivered++;
+				else if(recievedBy > 0) partial++;
+				else if(client.left) dropped++; //The client left before the server read the message
+				else lost++;
+			}
+		}
+		if(lost > 0) failures.add(lost+" messages from clients that stayed were never delivered.");
+		if(partial > 0) failures.add(partial+" messages only reached some of the observers.");
+		if(duplicated > 0) failures.add(duplicated+" messages were recieved twice.");
+		if(leakedBatchLines.get() > 0) failures.add(leakedBatchLines.get()+" lines of batches that were refused were sent as chat.");
+
+		double seconds = runTime / 1e9;
+		System.out.println("Run with seed "+seed+":");
+		System.out.println("  "+clients+" clients ("+observers+" observers, "+kicked+" kicked, "+disconnected+" disconnected, "+slow+
+				" slow readers, "+batches+" refused batches), "+nameCollisions+" names already taken");
+		System.out.println("  "+sent+" messages sent, "+delivered+" delivered to every observer, "+dropped+" dropped as their sender left");
+		System.out.println(String.format("  Took %.2f s: %d lines recieved (%d lines per second), joining took %.1f ms on average and %.1f ms at most",
+				seconds, linesRead, (long) (linesRead / seconds), totalJoinTime / 1e6 / clients, slowestJoinTime / 1e6));
+	}
+
+	/**A client connected to the server through a {@link PipeSocket}. Its thread chooses a name and sends messages,
+	 * while another thread reads everything the server sends to it.*/
+	private class SimulatedClient extends Thread
+	{
+		/**The number of the client, used in its messages so observers know who sent them */
+		private final int index;
+
+		/**Whether the client never leaves and records the messages it recieves */
+		private final boolean observer;
+
+		/**Whether the client gets kicked, disconnects suddenly or reads slowly */
+		private final boolean kick, disconnect, slow;
+
+		/**Whether the client sends a batch (which the server must refuse since the client is not trusted) before its messages */
+		private final boolean untrustedBatch;
+
+		/**The number of messages sent before the client is kicked or disconnects */
+		private final int leaveAfter;
+
+		/**Used for the client's own random choices */
+		private final Random random;
+
+		/**The client's end of the connection */
+		private PipeSocket socket;
+
+		/**Used to write to the server */
+		private PrintWriter textOut;
+
+		/**Replies to the client's name and commands, put here by the reading thread */
+		private final LinkedBlockingQueue<String> replies = new LinkedBlockingQueue<String>();
+
+		/**The name the server gave the client */
+		private String name;
+
+		/**The messages an observer has recieved, by (sender index * messages + message number) */
+		private final BitSet recieved = new BitSet();
+
+		/**Messages an observer has recieved more than once */
+		private int duplicates;
+
+		/**The number of lines the client has recieved */
+		private final AtomicInteger linesRead = new AtomicInteger();
+
+		/**The number of messages sent */
+		private int sent;
+
+		/**The number of names the client tried that were already taken */
+		private int nameCollisions;
+
+		/**How long (in nanoseconds) it took to get a name after connecting */
+		private long joinTime;
+
+		/**Set before the client leaves, so messages sent after this may be dropped */
+		private volatile boolean left;
+
+		/**The exception that stopped the client, if there was one */
+		private Exception failure;
+
+		/**Chooses what the client will do
+		 * @param index The number of the client
+		 * @param observer true if the client never leaves and checks which messages arrive
+		 * @param random Used to choose what the client does*/
+		SimulatedClient(int index, boolean observer, Random random)
+		{
+			this.index = index;
+			this.observer = observer;
+			double chance = random.nextDouble();
+			kick = !observer && chance < kickChance;
+			disconnect = !observer && !kick && chance < kickChance + disconnectChance;
+			slow = random.nextDouble() < slowChance;
+			leaveAfter = random.nextInt(messages + 1);
+			untrustedBatch = !observer && random.nextDouble() < batchChance;
+			this.random = new Random(random.nextLong());
+		}
+
+		/**Connects, chooses a name, then either waits for the other clients (observers) or sends messages */
+		public void run()
+		{
+			try
+			{
+				connect();
+				chooseName();
+				if(observer)
+				{
+					observersJoined.countDown();
+					sendersFinished.await();
+					waitForServer();
+				}
+				else sendMessages();
+			}
+			catch(Exception e)
+			{
+				failure = e;
+			}
+			finally
+			{
+				if(!observer) sendersFinished.countDown();
+				else if(failure != null) observersJoined.countDown();
+			}
+		}
+
+		/**Creates the in-memory connection, gives the server's end to the server and starts reading the client's end */
+		private void connect() throws IOException
+		{
+			Pipe toServer = new Pipe();
+			Pipe toClient = new Pipe();
+			socket = new PipeSocket(toClient, toServer);
+			server.addClient(new PipeSocket(toServer, toClient));
+			textOut = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+
+			final BufferedReader textIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			Thread readerThread = new Thread()
+			{
+				public void run()
+				{
+					readLines(textIn);
+				}
+			};
+			readerThread.setDaemon(true);
+			readerThread.start();
+		}
+
+		/**Tries a name lots of other clients want first, then the client's own name if it is taken */
+		private void chooseName() throws Exception
+		{
+			long startTime = System.nanoTime();
+			waitForReply("Please input a username:");
+			String chosenName = "sim"+random.nextInt(Math.max(1, clients / 4));
+			while(true)
+			{
+				textOut.println(chosenName);
+				String reply = waitForReply("Welcome to the server.", "Sorry that name is already taken.");
+				if(reply.startsWith("Welcome")) break;
+				nameCollisions++;
+				chosenName = "own"+index;
+			}
+			name = chosenName;
+			joinTime = System.nanoTime() - startTime;
+
+			SimulatedClient previous = names.put(name, this);
+			if(previous != null && !previous.left)
+			{
+				synchronized(failures)
+				{
+					failures.add("Clients "+previous.index+" and "+index+" were both given the name "+name+".");
+				}
+			}
+		}
+
+		/**Sends the client's messages once the observers are there, leaving part way through if the client is kicked or
+		 * disconnects, then waits for the server to read the last message*/
+		private void sendMessages() throws Exception
+		{
+			observersJoined.await();
+			if(untrustedBatch)
+			{
+				//None of these lines should reach anyone, since the client has not been trusted by the admin
+				textOut.println("/batch 2");
+				textOut.println("@"+name+" refused batch line");
+				textOut.println("* refused batch line");
+				waitForReply("You need to be trusted");
+			}
+			for(int message = 0; message < messages; message++)
+			{
+				if((kick || disconnect) && message == leaveAfter) break;
+				textOut.println("m"+index+"."+message);
+				sent++;
+				if(random.nextInt(4) == 0) Thread.sleep(random.nextInt(3));
+			}
+
+			if(kick)
+			{
+				left = true;
+				if(!server.kickClient(name)) throw new IOException("The server could not find "+name+" to kick them");
+			}
+			else if(disconnect) leave();
+			else waitForServer();
+		}
+
+		/**Sends a command and waits for the reply, which comes after the server has dealt with every earlier message */
+		private void waitForServer() throws Exception
+		{
+			textOut.println("/serverTime");
+			waitForReply("The server has been up for");
+		}
+
+		/**Waits for a reply starting with one of the texts
+		 * @return String - The reply
+		 * @throws IOException If the connection closes or there is no reply before the timeout*/
+		private String waitForReply(String... texts) throws Exception
+		{
+			while(true)
+			{
+				String reply = replies.poll(timeout, TimeUnit.MILLISECONDS);
+				if(reply == null) throw new IOException("No reply from the server when waiting for \""+texts[0]+"\"");
+				if(reply.equals("")) throw new EOFException("The server closed the connection when waiting for \""+texts[0]+"\"");
+				for(String text : texts)
+				{
+					if(reply.startsWith(text)) return reply;
+				}
+			}
+		}
+
+		/**Reads every line the server sends. Messages are recorded by observers, replies are passed to the client's thread.
+		 * Slow readers pause every few lines so the server has to wait for them.*/
+		private void readLines(BufferedReader textIn)
+		{
+			try
+			{
+				String line;
+				while( (line = textIn.readLine()) != null )
+				{
+					if(linesRead.incrementAndGet() % 10 == 0 && slow) Thread.sleep(1);
+
+					int messageStart = line.indexOf("]: m");
+					if(line.contains("refused batch line"))
+					{
+						if(observer) leakedBatchLines.incrementAndGet();
+					}
+					else if(line.startsWith("[") && messageStart != -1)
+					{
+						if(observer) record(line.substring(messageStart + 4));
+					}
+					else if(!line.isEmpty()) replies.add(line);
+				}
+			}
+			catch(Exception e) {} //The client closed its socket
+			replies.add(""); //Telling the client's thread the connection has closed
+			leave();
+		}
+
+		/**Records a message (sender.number) an observer has recieved */
+		private void record(String message)
+		{
+			int dot = message.indexOf('.');
+			int bit = Integer.parseInt(message.substring(0, dot)) * messages + Integer.parseInt(message.substring(dot + 1));
+			if(recieved.get(bit)) duplicates++;
+			recieved.set(bit);
+		}
+
+		/**Closes the client's end of the connection */
+		private void leave()
+		{
+			left = true;
+			socket.close();
+		}
+	}
+
+	/**An in-memory connection used instead of a TCP socket. The server reads and writes it through the normal
+	 * socket methods, and closing either end is seen by the other the way closing a TCP socket is.*/
+	private static class PipeSocket extends Socket
+	{
+		/**The data coming to this end */
+		private final Pipe in;
+
+		/**The data going to the other end */
+		private final Pipe out;
+
+		/**Whether this end has been closed */
+		private volatile boolean closed;
+
+		/**Creates one end of a connection
+		 * @param in The pipe this end reads from
+		 * @param out The pipe this end writes to*/
+		PipeSocket(Pipe in, Pipe out)
+		{
+			this.in = in;
+			this.out = out;
+		}
+
+		public InputStream getInputStream()
+		{
+			return new InputStream()
+			{
+				public int read() throws IOException
+				{
+					byte[] single = new byte[1];
+					return (read(single, 0, 1) == -1) ? -1 : single[0] & 0xff;
+				}
+
+				public int read(byte[] bytes, int offset, int length) throws IOException
+				{
+					return in.read(bytes, offset, length);
+				}
+			};
+		}
+
+		public OutputStream getOutputStream()
+		{
+			return new OutputStream()
+			{
+				public void write(int b) throws IOException
+				{
+					write(new byte[] {(byte) b}, 0, 1);
+				}
+
+				public void write(byte[] bytes, int offset, int length) throws IOException
+				{
+					out.write(bytes, offset, length);
+				}
+			};
+		}
+
+		public void close()
+		{
+			closed = true;
+			in.closeReader();
+			out.closeWriter();
+		}
+
+		public boolean isClosed()
+		{
+			return closed;
+		}
+	}
+
+	/**One direction of a {@link PipeSocket}. It holds at most {@link SimulationHarness#PIPE_CAPACITY} bytes,
+	 * after which the writer waits for the reader like it would if a TCP buffer was full.*/
+	private static class Pipe
+	{
+		/**The bytes waiting to be read, in a ring */
+		private final byte[] buffer = new byte[PIPE_CAPACITY];
+
+		/**Where the next byte will be read from */
+		private int readPosition;
+
+		/**The number of bytes waiting to be read */
+		private int count;
+
+		/**Set when the writing end closes, the reader gets the end of the stream once it has read everything */
+		private boolean writerClosed;
+
+		/**Set when the reading end closes, the writer gets an exception like writing to a closed TCP socket */
+		private boolean readerClosed;
+
+		/**Reads at least one byte, waiting until there is one to read
+		 * @return int - The number of bytes read, or -1 if the writer has closed
+		 * @throws IOException If the reading end has been closed*/
+		synchronized int read(byte[] bytes, int offset, int length) throws IOException
+		{
+			while(count == 0)
+			{
+				if(readerClosed) throw new SocketException("Socket closed");
+				if(writerClosed) return -1;
+				waitForChange();
+			}
+			if(readerClosed) throw new SocketException("Socket closed");
+
+			int total = Math.min(length, count);
+			for(int copied = 0; copied < total;)
+			{
+				int chunk = Math.min(total - copied, buffer.length - readPosition);
+				System.arraycopy(buffer, readPosition, bytes, offset + copied, chunk);
+				readPosition = (readPosition + chunk) % buffer.length;
+				count -= chunk;
+				copied += chunk;
+			}
+			notifyAll();
+			return total;
+		}
+
+		/**Writes every byte, waiting for the reader whenever the pipe is full
+		 * @throws IOException If either end has been closed*/
+		synchronized void write(byte[] bytes, int offset, int length) throws IOException
+		{
+			while(length > 0)
+			{
+				if(writerClosed || readerClosed) throw new SocketException("Broken pipe");
+				if(count == buffer.length)
+				{
+					waitForChange();
+					continue;
+				}
+
+				int total = Math.min(length, buffer.length - count);
+				for(int copied = 0; copied < total;)
+				{
+					int position = (readPosition + count) % buffer.length;
+					int chunk = Math.min(total - copied, buffer.length - position);
+					System.arraycopy(bytes, offset + copied, buffer, position, chunk);
+					count += chunk;
+					copied += chunk;
+				}
+				offset += total;
+				length -= total;
+				notifyAll();
+			}
+		}
+
+		/**Waits until the other end reads, writes or closes */
+		private void waitForChange() throws IOException
+		{
+			try {wait();}
+			catch(InterruptedException e) {throw new InterruptedIOException();}
+		}
+
+		/**Closes the reading end */
+		synchronized void closeReader()
+		{
+			readerClosed = true;
+			notifyAll();
+		}
+
+		/**Closes the writing end */
+		synchronized void closeWriter()
+		{
+			writerClosed = true;
+			notifyAll();
+		}
+	}
+
+}